@@ -1,6 +1,13 @@
 import java.util.*;
 import java.util.regex.*;
+import java.util.zip.CRC32;
 
+/**
+ * A block that is being transferred.  A block that we are downloading is a view of one entry of its torrent's
+ * BlockTable (which holds its status, how much of it has been read, and so on); these views are only made for blocks
+ * that have been handed to a peer.  A block that a peer has asked us for, or one read from a resume file, is not
+ * part of any table, and keeps its state itself.
+ */
 public class BlockRequest
 {
 	public static final int UNASSIGNED = -2; // Incoming Block: we have not yet assigned this request to a peer.  Outgoing Block: unused.
@@ -9,53 +16,123 @@ public class BlockRequest
 	public static final int STARTED = 1; // Incoming Block: we have started receiving it.  Outgoing: unused.
 	public static final int FINISHED = 2; // Incoming Block: we have finished receiving it.  Outgoing: unused.
 	
-	public long timeModified;
-	
-	BlockRequest next;
-	BlockRequest prev;
-	
 	int piece; // This should always be non-negative
 	int offset; // This should always be non-negative
 	int length; // This should always be non-negative
-	int status; //0 is empty, 1 is started, 2 is finished
-	int bytesRead; // This should always be non-negative
+	
+	BlockTable table; // the table that holds this block's state, or null
+	int block; // this block's number in the table
+	boolean cancelling; // whether this request is waiting in its peer's shouldCancel list
+	boolean requested; // whether the Request message has been sent (in endgame mode, several peers are asked for the same block)
+	long sentTime; // System.nanoTime() when the Request was sent (0 until then, and once its round trip has been measured)
+	int requestSlot; // where this request is in its peer's sendRequests list, or -1 if it is not in one
+	CRC32 checksum; // the running CRC32 of the block's data, while it is arriving (for the resume file)
+	
+	// State for a block that is not in a table:
+	private int status;
+	private int bytesRead;
+	private long timeModified;
 	
 	private BlockRequest()
 	{
 		this.piece = -1;
 		this.offset = -1;
 		this.length = -1;
-		bytesRead = 0;
-		status = UNASSIGNED;
-		this.prev = null;
-		this.next = null;
+		this.table = null;
+		this.block = -1;
+		this.requestSlot = -1;
+		this.bytesRead = 0;
+		this.status = UNASSIGNED;
 		this.timeModified = (new Date()).getTime();
 	}
 	
-	public BlockRequest(int piece, int offset, int length, BlockRequest prev, BlockRequest next)
+	/**
+	 * Constructor - a view of a block in a torrent's table.
+	 * @param table the table
+	 * @param block the block's number in the table
+	 */
+	public BlockRequest(BlockTable table, int block)
 	{
-		this.piece = piece;
-		this.offset = offset;
-		this.length = length;
-		bytesRead = 0;
-		status = UNASSIGNED;
-		this.prev = prev;
-		this.next = next;
-		this.timeModified = (new Date()).getTime();
+		this.piece = table.pieceOf(block);
+		this.offset = table.offsetOf(block);
+		this.length = table.lengthOf(block);
+		this.table = table;
+		this.block = block;
+		this.requestSlot = -1;
 	}
 	
+	/**
+	 * Constructor - a block that is not part of any table (one that a peer has requested from us).
+	 */
 	public BlockRequest(int piece, int offset, int length)
 	{
 		this.piece = piece;
 		this.offset = offset;
 		this.length = length;
-		bytesRead = 0;
-		status = UNASSIGNED;
+		this.table = null;
+		this.block = -1;
+		this.requestSlot = -1;
+		this.bytesRead = 0;
+		this.status = UNASSIGNED;
+	}
+	
+	public int getStatus()
+	{
+		return (this.table == null)? (this.status) : (this.table.getStatus(this.block));
+	}
+	
+	public void setStatus(int status)
+	{
+		if(this.table == null)
+			this.status = status;
+		else
+			this.table.setStatus(this.block, status);
+	}
+	
+	public int getBytesRead()
+	{
+		return (this.table == null)? (this.bytesRead) : (this.table.getBytesRead(this.block));
+	}
+	
+	public void setBytesRead(int bytesRead)
+	{
+		if(this.table == null)
+			this.bytesRead = bytesRead;
+		else
+			this.table.setBytesRead(this.block, bytesRead);
+	}
+	
+	public long getTimeModified()
+	{
+		return (this.table == null)? (this.timeModified) : (this.table.getTimeModified(this.block));
+	}
+	
+	public void setTimeModified(long time)
+	{
+		if(this.table == null)
+			this.timeModified = time;
+		else
+			this.table.setTimeModified(this.block, time);
+	}
+	
+	/**
+	 * Put this block back to UNASSIGNED (so that it can be handed to another peer), forgetting anything that was
+	 * read of it.
+	 */
+	public void release()
+	{
+		if(this.table == null)
+		{
+			this.status = UNASSIGNED;
+			this.bytesRead = 0;
+		}
+		else
+			this.table.release(this.block);
 	}
 	
 	public String toString()
 	{
-		return "Piece: " + piece + " Offset: " + offset + " Length: " + length + " Status: " + status;
+		return "Piece: " + piece + " Offset: " + offset + " Length: " + length + " Status: " + this.getStatus();
 	}
 	//void sendRequest(Peer p);
 	
@@ -65,7 +142,7 @@ public class BlockRequest
 	 */
 	public String toPrintString()
 	{
-		return "Piece: " + piece + " Offset: " + offset + " Length: " + length + " Status: " + status;
+		return "Piece: " + piece + " Offset: " + offset + " Length: " + length + " Status: " + this.getStatus();
 	}
 	
 	/**
@@ -93,4 +170,3 @@ public class BlockRequest
 		}
 	}
 }
-
@@ -0,0 +1,206 @@
+import java.util.Arrays;
+
+/**
+ * The state of every block of a torrent, kept in flat arrays indexed by block number (the blocks of piece n are
+ * numbered from n * blocksPerPiece), instead of in an object for each block.  The layout of the blocks is fixed by
+ * the piece and block lengths: every block is block_length long except for the last one of a piece, which may be
+ * shorter (as may the last piece).
+ *
+ * BlockRequest objects are only made for the blocks that have been handed to a peer, and read and write their
+ * state through this table.  Like the rest of a torrent's shared state, it is only used while holding the torrent's
+ * lock.
+ */
+public class BlockTable
+{
+	private long fileLength;
+	private int pieceLength;
+	private int blockLength;
+	private int blocksPerPiece;
+	private int totalPieces;
+
+	private byte[] status; // one of the BlockRequest status constants
+	private int[] bytesRead;
+	private int[] owner; // the index of the peer that the block was handed to, or -1
+	private long[] timeModified;
+	private int[] checksum; // CRC32 of a FINISHED block's data, as it was stored
+	private int unassigned; // the number of blocks that are UNASSIGNED
+	private int[] unassignedInPiece; // the same, for each piece
+
+	/**
+	 * Constructor - every block starts out UNASSIGNED.
+	 * @param fileLength the length of the torrent's file
+	 * @param pieceLength the length of a piece
+	 * @param blockLength the length of a block
+	 */
+	public BlockTable(long fileLength, int pieceLength, int blockLength)
+	{
+		this.fileLength = fileLength;
+		this.pieceLength = pieceLength;
+		this.blockLength = blockLength;
+		this.blocksPerPiece = (pieceLength + blockLength - 1) / blockLength;
+		this.totalPieces = (int)((fileLength + pieceLength - 1) / pieceLength);
+
+		int totalBlocks = this.totalPieces * this.blocksPerPiece;
+		this.status = new byte[totalBlocks];
+		this.bytesRead = new int[totalBlocks];
+		this.owner = new int[totalBlocks];
+		this.timeModified = new long[totalBlocks];
+		this.checksum = new int[totalBlocks];
+		Arrays.fill(this.status, (byte)BlockRequest.UNASSIGNED);
+		Arrays.fill(this.owner, -1);
+		// (the last piece may not fill all of its slots, and the ones it doesn't fill are never used)
+		this.unassigned = (this.totalPieces == 0)? (0) : ((this.totalPieces - 1) * this.blocksPerPiece + this.blocksInPiece(this.totalPieces - 1));
+		this.unassignedInPiece = new int[this.totalPieces];
+		for(int i = 0; i < this.totalPieces; i ++)
+			this.unassignedInPiece[i] = this.blocksInPiece(i);
+	}
+	
+	/**
+	 * @return the number of blocks that have not been handed to any peer (once there are none left, the torrent is in
+	 * its endgame)
+	 */
+	public int unassignedCount()
+	{
+		return this.unassigned;
+	}
+	
+	/**
+	 * @return the number of blocks of a piece that have not been handed to any peer
+	 */
+	public int unassignedCount(int piece)
+	{
+		return this.unassignedInPiece[piece];
+	}
+
+	/**
+	 * @return the number of the first block of a piece
+	 */
+	public int firstBlock(int piece)
+	{
+		return piece * this.blocksPerPiece;
+	}
+
+	/**
+	 * @return the number of blocks in a piece (the last piece may have fewer than the rest)
+	 */
+	public int blocksInPiece(int piece)
+	{
+		if(piece == this.totalPieces - 1)
+		{
+			int lastPieceLength = (int)(this.fileLength - piece * ((long)this.pieceLength));
+			return (lastPieceLength + this.blockLength - 1) / this.blockLength;
+		}
+		return this.blocksPerPiece;
+	}
+
+	/**
+	 * @return the number of the block that starts at offset in piece, or -1 if no block starts there
+	 */
+	public int blockAt(int piece, int offset)
+	{
+		if(piece < 0 || piece >= this.totalPieces || offset < 0 || offset % this.blockLength != 0 || offset / this.blockLength >= this.blocksInPiece(piece))
+			return -1;
+		return this.firstBlock(piece) + offset / this.blockLength;
+	}
+
+	public int pieceOf(int block)
+	{
+		return block / this.blocksPerPiece;
+	}
+
+	public int offsetOf(int block)
+	{
+		return (block % this.blocksPerPiece) * this.blockLength;
+	}
+
+	public int lengthOf(int block)
+	{
+		int piece = this.pieceOf(block);
+		int thisPieceLength = (piece == this.totalPieces - 1)? ((int)(this.fileLength - piece * ((long)this.pieceLength))) : (this.pieceLength);
+		return Math.min(this.blockLength, thisPieceLength - this.offsetOf(block));
+	}
+
+	public int getStatus(int block)
+	{
+		return this.status[block];
+	}
+
+	public void setStatus(int block, int status)
+	{
+		if(this.status[block] == BlockRequest.UNASSIGNED)
+		{
+			this.unassigned --;
+			this.unassignedInPiece[this.pieceOf(block)] --;
+		}
+		if(status == BlockRequest.UNASSIGNED)
+		{
+			this.unassigned ++;
+			this.unassignedInPiece[this.pieceOf(block)] ++;
+		}
+		this.status[block] = (byte)status;
+	}
+
+	public int getBytesRead(int block)
+	{
+		return this.bytesRead[block];
+	}
+
+	public void setBytesRead(int block, int bytesRead)
+	{
+		this.bytesRead[block] = bytesRead;
+	}
+
+	public int getOwner(int block)
+	{
+		return this.owner[block];
+	}
+
+	public void setOwner(int block, int owner)
+	{
+		this.owner[block] = owner;
+	}
+
+	public long getTimeModified(int block)
+	{
+		return this.timeModified[block];
+	}
+
+	public void setTimeModified(int block, long time)
+	{
+		this.timeModified[block] = time;
+	}
+
+	public int getChecksum(int block)
+	{
+		return this.checksum[block];
+	}
+
+	public void setChecksum(int block, int checksum)
+	{
+		this.checksum[block] = checksum;
+	}
+
+	/**
+	 * Put a block back to UNASSIGNED, forgetting anything that was read of it.
+	 */
+	public void release(int block)
+	{
+		this.setStatus(block, BlockRequest.UNASSIGNED);
+		this.bytesRead[block] = 0;
+		this.owner[block] = -1;
+	}
+	
+	/**
+	 * Mark every block of a piece that we already have as FINISHED (so that none of them count as unassigned).
+	 */
+	public void finishPiece(int piece)
+	{
+		int first = this.firstBlock(piece);
+		int count = this.blocksInPiece(piece);
+		for(int i = 0; i < count; i ++)
+		{
+			this.setStatus(first + i, BlockRequest.FINISHED);
+			this.bytesRead[first + i] = this.lengthOf(first + i);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of equally sized direct ByteBuffers, so that the buffers we read into and send from are reused instead
+ * of becoming garbage.  Buffers are carved out of larger slabs (allocating direct memory is slow, and each direct
+ * allocation is rounded up to a page), and are handed out and taken back from any thread.
+ */
+public class BufferPool
+{
+	public static final int BUFFERS_PER_SLAB = 64;
+
+	private String name;
+	private int bufferSize;
+	private int maxFree; // buffers past this many are left for the garbage collector when they are given back
+	private ConcurrentLinkedQueue<ByteBuffer> free;
+	private AtomicInteger freeCount; // the size of free (which is slow to count)
+
+	// Statistics:
+	private AtomicLong slabsAllocated;
+	private AtomicLong borrowed;
+	private AtomicLong inUse;
+	private AtomicLong dropped;
+
+	/**
+	 * Constructor
+	 * @param name what the buffers are for (only used in getStatistics)
+	 * @param bufferSize the size of each buffer
+	 * @param maxFree the most buffers to keep around when they are not being used
+	 */
+	public BufferPool(String name, int bufferSize, int maxFree)
+	{
+		this.name = name;
+		this.bufferSize = bufferSize;
+		this.maxFree = maxFree;
+		this.free = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.freeCount = new AtomicInteger(0);
+		this.slabsAllocated = new AtomicLong(0);
+		this.borrowed = new AtomicLong(0);
+		this.inUse = new AtomicLong(0);
+		this.dropped = new AtomicLong(0);
+	}
+
+	/**
+	 * @return the size of each buffer in this pool
+	 */
+	public int getBufferSize()
+	{
+		return this.bufferSize;
+	}
+
+	/**
+	 * @return an empty buffer (position 0, limit at its capacity), which should be given back when it is finished with
+	 */
+	public ByteBuffer borrow()
+	{
+		ByteBuffer buf = this.free.poll();
+		if(buf != null)
+		{
+			this.freeCount.decrementAndGet();
+		}
+		else
+		{
+			// Carve up a new slab, keep all but one of its buffers for later:
+			ByteBuffer slab = ByteBuffer.allocateDirect(this.bufferSize * BUFFERS_PER_SLAB);
+			this.slabsAllocated.incrementAndGet();
+			for(int i = 0; i < BUFFERS_PER_SLAB; i++)
+			{
+				slab.limit((i + 1) * this.bufferSize);
+				slab.position(i * this.bufferSize);
+				ByteBuffer slice = slab.slice();
+				if(buf == null)
+					buf = slice;
+				else
+				{
+					this.free.add(slice);
+					this.freeCount.incrementAndGet();
+				}
+			}
+		}
+		this.borrowed.incrementAndGet();
+		this.inUse.incrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Give a buffer back to the pool.  Buffers that did not come from a pool like this one (heap buffers, or ones of
+	 * a different size) are ignored, as is null.
+	 * @param buf the buffer - it must not be used again by whoever gave it back
+	 */
+	public void giveBack(ByteBuffer buf)
+	{
+		if(buf == null || !buf.isDirect() || buf.capacity() != this.bufferSize)
+			return;
+		this.inUse.decrementAndGet();
+		if(this.freeCount.get() < this.maxFree)
+		{
+			this.free.add(buf);
+			this.freeCount.incrementAndGet();
+		}
+		else
+			this.dropped.incrementAndGet();
+	}
+
+	/**
+	 * @return a one line summary of how the pool is being used
+	 */
+	public String getStatistics()
+	{
+		return this.name + " buffers: " + this.inUse.get() + " in use, " + this.freeCount.get() + " free, " + this.slabsAllocated.get() + " slabs of " + BUFFERS_PER_SLAB + " x " + this.bufferSize + " bytes allocated, " + this.borrowed.get() + " borrowed in total, " + this.dropped.get() + " dropped.";
+	}
+}
@@ -0,0 +1,50 @@
+import java.io.*;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reads commands typed on standard input in a background thread, so that the main loop can block
+ * in select() instead of polling System.in.  Each line that is read is queued and the selector is
+ * woken up so the main loop notices it right away.
+ */
+public class ConsoleReader extends Thread
+{
+	private Selector selector;
+	private ConcurrentLinkedQueue<String> commands;
+
+	public ConsoleReader(Selector selector)
+	{
+		this.selector = selector;
+		this.commands = new ConcurrentLinkedQueue<String>();
+		this.setDaemon(true);
+		this.setName("BitTortoise console");
+	}
+
+	public void run()
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		try
+		{
+			String line;
+			while((line = in.readLine()) != null)
+			{
+				if(line.length() == 0)
+					continue;
+				this.commands.add(line);
+				this.selector.wakeup();
+			}
+		}
+		catch(IOException e)
+		{
+			System.out.println("Error reading from the console - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the next command typed by the user, or null if there is none waiting
+	 */
+	public String nextCommand()
+	{
+		return this.commands.poll();
+	}
+}
@@ -0,0 +1,85 @@
+import java.util.PriorityQueue;
+
+/**
+ * A queue of timer deadlines for the main loop.  The loop blocks in select() for no longer than
+ * timeUntilNext(), and then hands every expired deadline to its handler.  Deadlines are one-shot:
+ * whoever handles one is responsible for scheduling it again.
+ */
+public class DeadlineQueue
+{
+	public static final int UNCHOKE_ROUND = 0; // Re-choose which peers are unchoked, print status
+	public static final int TRACKER_ANNOUNCE = 1; // Re-announce to the tracker if we are running low on peers
+	public static final int KEEP_ALIVE = 2; // Look for peers that are due a keep-alive, stale requests, or empty request queues
+	public static final int CHECKPOINT = 3; // Save a torrent's resume file, in case we go down before finishing
+
+	/**
+	 * A single scheduled event.  The attachment is whatever the scheduler wants back when it fires.
+	 */
+	public static class Deadline implements Comparable<Deadline>
+	{
+		public long time;
+		public int event;
+		public Object attachment;
+
+		public Deadline(long time, int event, Object attachment)
+		{
+			this.time = time;
+			this.event = event;
+			this.attachment = attachment;
+		}
+
+		public int compareTo(Deadline other)
+		{
+			if(this.time < other.time)
+				return -1;
+			else if(this.time > other.time)
+				return 1;
+			else
+				return 0;
+		}
+	}
+
+	private PriorityQueue<Deadline> queue;
+
+	public DeadlineQueue()
+	{
+		this.queue = new PriorityQueue<Deadline>();
+	}
+
+	/**
+	 * Schedule an event to fire delay milliseconds from now.
+	 * @param event one of the event constants in this class
+	 * @param attachment object returned along with the event when it fires (may be null)
+	 * @param delay milliseconds from now
+	 */
+	public void schedule(int event, Object attachment, long delay)
+	{
+		this.queue.add(new Deadline(System.currentTimeMillis() + delay, event, attachment));
+	}
+
+	/**
+	 * @param now the current time in milliseconds
+	 * @return the number of milliseconds until the next deadline, or 0 if there are no deadlines (block indefinitely, as with select(0)).
+	 * Never returns 0 for a deadline that has already passed; returns 1 instead so select() will not block.
+	 */
+	public long timeUntilNext(long now)
+	{
+		Deadline next = this.queue.peek();
+		if(next == null)
+			return 0;
+		return Math.max(1, next.time - now);
+	}
+
+	/**
+	 * Remove and return the earliest deadline if it has passed.
+	 * @param now the current time in milliseconds
+	 * @return the expired Deadline, or null if nothing has expired yet
+	 */
+	public Deadline pollExpired(long now)
+	{
+		Deadline next = this.queue.peek();
+		if(next == null || next.time > now)
+			return null;
+		return this.queue.poll();
+	}
+}
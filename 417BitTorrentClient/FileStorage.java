@@ -0,0 +1,74 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Storage that reads and writes a file with a system call for each block.
+ */
+public class FileStorage implements Storage
+{
+	private RandomAccessFile file;
+	private FileChannel channel;
+
+	/**
+	 * Constructor - opens (or creates) the file.
+	 * @param fileName the file
+	 */
+	public FileStorage(String fileName) throws IOException
+	{
+		this.file = new RandomAccessFile(fileName, "rw");
+		this.channel = this.file.getChannel();
+	}
+
+	public void read(ByteBuffer dst, long position) throws IOException
+	{
+		while(dst.hasRemaining())
+		{
+			int read = this.channel.read(dst, position);
+			if(read < 0)
+				throw new EOFException("Read past the end of the file at " + position);
+			position += read;
+		}
+	}
+
+	public void write(ByteBuffer src, long position) throws IOException
+	{
+		while(src.hasRemaining())
+		{
+			position += this.channel.write(src, position);
+		}
+	}
+
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException
+	{
+		// The kernel can send straight from the page cache (sendfile) when the target is a socket:
+		return this.channel.transferTo(position, count, target);
+	}
+
+	public ByteBuffer directBuffer(long position, int count) throws IOException
+	{
+		// Blocks are staged in the (pooled, direct) read buffers and written with FileChannel.write
+		return null;
+	}
+
+	public long length() throws IOException
+	{
+		return this.file.length();
+	}
+
+	public void setLength(long length) throws IOException
+	{
+		this.file.setLength(length);
+	}
+
+	public void force() throws IOException
+	{
+		this.channel.force(false);
+	}
+
+	public void close() throws IOException
+	{
+		this.file.close();
+	}
+}
@@ -0,0 +1,212 @@
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.text.SimpleDateFormat;
+
+/**
+ * Splits what a peer has sent us into messages, parsing them where they lie in the peer's read buffer and handing
+ * each one to a MessageHandler as soon as it is complete.
+ *
+ * The unprocessed bytes in a read buffer are the ones from peer.readCursor up to the buffer's position (where the
+ * next read will put its data), so a message can be consumed just by moving the cursor.  The data of a Piece message
+ * (and the body of a message we do not understand) is passed on or skipped as it arrives, rather than waiting for all
+ * of it to be in the buffer.  Bytes are only moved back to the start of the buffer when a partial message would not
+ * otherwise fit in the space that is left.
+ */
+public class FrameDecoder
+{
+	public static final int HANDSHAKE_LENGTH = 68;
+	public static final int PIECE_HEADER_LENGTH = 13; // length, id, index and begin
+	public static final int MAX_MESSAGE_LENGTH = 1 << 17; // longer than any block or bitfield that we should see
+
+	/**
+	 * Process all of the complete messages in a peer's read buffer, and leave the buffer ready for the next read.
+	 * @param p the peer (whose readBuffer, readCursor and payload fields are updated)
+	 * @param handler where to send the messages
+	 * @return false if the connection should be closed
+	 */
+	public static boolean decode(Peer p, MessageHandler handler)
+	{
+		ByteBuffer buf = p.readBuffer;
+		int end = buf.position();
+		int cursor = p.readCursor;
+		int wanted = 0; // how many bytes (from the cursor) the message we stopped at needs to be in the buffer at once
+
+		while(true)
+		{
+			int available = end - cursor;
+
+			if(p.payloadLeft > 0)
+			{
+				// In the middle of a Piece message's data (or an unknown message's body):
+				if(available == 0)
+					break;
+
+				int amount = Math.min(available, p.payloadLeft);
+				if(!p.skippingPayload)
+				{
+					buf.limit(cursor + amount);
+					buf.position(cursor);
+					boolean ok = handler.handlePieceData(p, buf);
+					buf.limit(buf.capacity());
+					if(!ok)
+						return false;
+				}
+				cursor += amount;
+				p.payloadLeft -= amount;
+				continue;
+			}
+
+			if(!p.handshake_received)
+			{
+				if(available < HANDSHAKE_LENGTH)
+				{
+					wanted = HANDSHAKE_LENGTH;
+					break;
+				}
+				if(!handler.handleHandshake(p, buf, cursor))
+					return false;
+				cursor += HANDSHAKE_LENGTH;
+				continue;
+			}
+
+			if(available < 4)
+			{
+				wanted = 4;
+				break;
+			}
+
+			int length = buf.getInt(cursor);
+			if(length == 0)
+			{
+				if(!handler.handleKeepAlive(p))
+					return false;
+				cursor += 4;
+				continue;
+			}
+
+			if(length < 0 || length > MAX_MESSAGE_LENGTH)
+			{
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Disconnecting from peer - Received bad data");
+				return false;
+			}
+
+			if(available < 5)
+			{
+				wanted = 5;
+				break;
+			}
+
+			byte id = buf.get(cursor + 4);
+			if(id == 7 || id < 0 || id > 8)
+			{
+				// Piece (and unknown) messages: handle the header now, and the rest as it arrives
+				int headerLength = (id == 7)? (PIECE_HEADER_LENGTH) : (5);
+				if(length + 4 < headerLength)
+				{
+					System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Disconnecting from peer - Received bad data");
+					return false;
+				}
+				if(available < headerLength)
+				{
+					wanted = headerLength;
+					break;
+				}
+
+				boolean ok;
+				if(id == 7)
+					ok = handler.handlePieceStart(p, buf.getInt(cursor + 5), buf.getInt(cursor + 9), length - 9);
+				else
+					ok = handler.handleUnknown(p, id, length);
+				if(!ok)
+					return false;
+
+				p.skippingPayload = (id != 7);
+				p.payloadLeft = length + 4 - headerLength;
+				cursor += headerLength;
+				continue;
+			}
+
+			// Everything else is short, so wait until the whole message is here:
+			int minimumLength = (id == 4)? (5) : ((id == 6 || id == 8)? (13) : (1));
+			if(length < minimumLength)
+			{
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Disconnecting from peer - Received bad data");
+				return false;
+			}
+			if(available < length + 4)
+			{
+				wanted = length + 4;
+				break;
+			}
+
+			boolean ok;
+			switch(id)
+			{
+				case 0:
+					ok = handler.handleChoke(p);
+					break;
+				case 1:
+					ok = handler.handleUnchoke(p);
+					break;
+				case 2:
+					ok = handler.handleInterested(p);
+					break;
+				case 3:
+					ok = handler.handleNotInterested(p);
+					break;
+				case 4:
+					ok = handler.handleHave(p, buf.getInt(cursor + 5));
+					break;
+				case 5:
+					ok = handler.handleBitfield(p, buf, cursor + 5, length - 1);
+					break;
+				case 6:
+					ok = handler.handleRequest(p, buf.getInt(cursor + 5), buf.getInt(cursor + 9), buf.getInt(cursor + 13));
+					break;
+				default:
+					ok = handler.handleCancel(p, buf.getInt(cursor + 5), buf.getInt(cursor + 9), buf.getInt(cursor + 13));
+					break;
+			}
+			if(!ok)
+				return false;
+			cursor += length + 4;
+		}
+
+		// Leave the buffer ready for the next read:
+		if(cursor == end)
+		{
+			// Everything was used up, so start again from the beginning (without copying anything)
+			buf.clear();
+			cursor = 0;
+		}
+		else if(cursor + wanted > buf.capacity())
+		{
+			if(wanted > buf.capacity())
+			{
+				// A message that will never fit (a bitfield for a very large torrent): swap in a bigger buffer
+				ByteBuffer bigger = ByteBuffer.allocate(wanted);
+				buf.limit(end);
+				buf.position(cursor);
+				bigger.put(buf);
+				if(p.torrent != null)
+					p.torrent.session.readBuffers.giveBack(buf);
+				p.readBuffer = bigger;
+			}
+			else
+			{
+				// Move the partial message down to the start of the buffer to make room for the rest of it
+				buf.limit(end);
+				buf.position(cursor);
+				buf.compact();
+			}
+			cursor = 0;
+		}
+		else
+		{
+			buf.position(end);
+		}
+
+		p.readCursor = cursor;
+		return true;
+	}
+}
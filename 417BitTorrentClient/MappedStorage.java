@@ -0,0 +1,144 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Storage that maps the file into memory, so that storing a block is a memory copy and reading one for an upload
+ * comes straight out of the page cache.  A single mapping cannot be more than 2GB, so the file is mapped in
+ * windows of WINDOW_SIZE bytes; a read or write that crosses the end of a window carries on into the next one.
+ */
+public class MappedStorage implements Storage
+{
+	public static final long WINDOW_SIZE = 64 * 1024 * 1024; // bytes per mapping (a multiple of any sane piece length)
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private volatile long length;
+	private volatile MappedByteBuffer[] windows;
+
+	/**
+	 * Constructor - opens (or creates) the file, and maps however much of it there is.
+	 * @param fileName the file
+	 */
+	public MappedStorage(String fileName) throws IOException
+	{
+		this.file = new RandomAccessFile(fileName, "rw");
+		this.channel = this.file.getChannel();
+		this.mapWindows(this.file.length());
+	}
+
+	/**
+	 * Map the first length bytes of the file, WINDOW_SIZE bytes at a time.
+	 * @param length the length of the file
+	 */
+	private void mapWindows(long length) throws IOException
+	{
+		int count = (int)((length + WINDOW_SIZE - 1) / WINDOW_SIZE);
+		MappedByteBuffer[] newWindows = new MappedByteBuffer[count];
+		for(int i = 0; i < count; i++)
+		{
+			long start = i * WINDOW_SIZE;
+			newWindows[i] = this.channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_SIZE, length - start));
+		}
+		this.length = length;
+		this.windows = newWindows;
+	}
+
+	/**
+	 * @return a buffer over the mapping that holds position, starting at position, that is ours alone to move
+	 * around in (the mapping itself is shared between threads)
+	 */
+	private ByteBuffer windowAt(long position)
+	{
+		int index = (int)(position / WINDOW_SIZE);
+		ByteBuffer window = this.windows[index].duplicate();
+		window.position((int)(position - index * WINDOW_SIZE));
+		return window;
+	}
+
+	public void read(ByteBuffer dst, long position) throws IOException
+	{
+		if(position < 0 || position + dst.remaining() > this.length)
+			throw new EOFException("Read past the end of the file at " + position);
+
+		while(dst.hasRemaining())
+		{
+			ByteBuffer window = this.windowAt(position);
+			if(window.remaining() > dst.remaining())
+				window.limit(window.position() + dst.remaining());
+			position += window.remaining();
+			dst.put(window);
+		}
+	}
+
+	public void write(ByteBuffer src, long position) throws IOException
+	{
+		if(position < 0 || position + src.remaining() > this.length)
+			throw new IOException("Write past the end of the file at " + position);
+
+		while(src.hasRemaining())
+		{
+			ByteBuffer window = this.windowAt(position);
+			int amount = Math.min(window.remaining(), src.remaining());
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + amount);
+			window.put(part);
+			src.position(src.position() + amount);
+			position += amount;
+		}
+	}
+
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException
+	{
+		if(position < 0 || position + count > this.length)
+			throw new EOFException("Read past the end of the file at " + position);
+
+		// Sending from the mapping itself is a single copy into the socket; stop at the end of the window
+		// (the caller comes back for the rest)
+		ByteBuffer window = this.windowAt(position);
+		if(window.remaining() > count)
+			window.limit(window.position() + (int)count);
+		return target.write(window);
+	}
+
+	public ByteBuffer directBuffer(long position, int count) throws IOException
+	{
+		if(position < 0 || position + count > this.length)
+			throw new IOException("Write past the end of the file at " + position);
+
+		// Only up to the end of the window (the caller comes back for the rest)
+		ByteBuffer window = this.windowAt(position);
+		if(window.remaining() > count)
+			window.limit(window.position() + count);
+		return window;
+	}
+
+	public long length() throws IOException
+	{
+		return this.length;
+	}
+
+	public void setLength(long length) throws IOException
+	{
+		for(MappedByteBuffer window : this.windows)
+			window.force();
+		this.file.setLength(length);
+		this.mapWindows(length);
+	}
+
+	public void force() throws IOException
+	{
+		for(MappedByteBuffer window : this.windows)
+			window.force();
+	}
+
+	public void close() throws IOException
+	{
+		// Note: the mappings themselves stay around until they are garbage collected
+		for(MappedByteBuffer window : this.windows)
+			window.force();
+		this.file.close();
+	}
+}
@@ -0,0 +1,57 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the messages that a FrameDecoder finds in a peer's read buffer, as they are found.  Anything passed in
+ * a ByteBuffer is a view of the read buffer itself, so it is only valid until the method returns.
+ *
+ * Every method returns false if the connection should be closed.
+ */
+public interface MessageHandler
+{
+	/**
+	 * The 68-byte handshake from a peer we connected to.
+	 * @param buf the read buffer
+	 * @param start where the handshake starts in buf
+	 */
+	public boolean handleHandshake(Peer p, ByteBuffer buf, int start);
+
+	public boolean handleKeepAlive(Peer p);
+
+	public boolean handleChoke(Peer p);
+
+	public boolean handleUnchoke(Peer p);
+
+	public boolean handleInterested(Peer p);
+
+	public boolean handleNotInterested(Peer p);
+
+	public boolean handleHave(Peer p, int piece_index);
+
+	/**
+	 * @param buf the read buffer
+	 * @param start where the bitfield itself starts in buf
+	 * @param length the number of bytes in the bitfield
+	 */
+	public boolean handleBitfield(Peer p, ByteBuffer buf, int start, int length);
+
+	public boolean handleRequest(Peer p, int request_index, int request_begin, int request_length);
+
+	/**
+	 * The start of a Piece message - its data follows in one or more calls to handlePieceData.
+	 * @param block_length the number of bytes of data in the message
+	 */
+	public boolean handlePieceStart(Peer p, int piece_index, int block_begin, int block_length);
+
+	/**
+	 * Part of the data of the Piece message that was last started.
+	 * @param data the data, from its position to its limit
+	 */
+	public boolean handlePieceData(Peer p, ByteBuffer data);
+
+	public boolean handleCancel(Peer p, int cancel_index, int cancel_begin, int cancel_length);
+
+	/**
+	 * A message with an id that we do not know (its contents are skipped).
+	 */
+	public boolean handleUnknown(Peer p, int id, int length);
+}
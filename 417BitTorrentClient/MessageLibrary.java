@@ -9,62 +9,54 @@ public class MessageLibrary
 	public static final byte[] interested = 		new byte[]{0,0,0,1,2};
 	public static final byte[] not_interested =		new byte[]{0,0,0,1,3};
 
-	static private ByteBuffer have;
-	static private ByteBuffer bitfield;
-	static private ByteBuffer request;
-	static private ByteBuffer piece;
-	static private ByteBuffer cancel;
 //	private ByteBuffer port;
 	
-	public static byte[] getHaveMessage(int piece_index)
+	// Each of these puts a message at the buffer's position, and returns the buffer.  Nothing is allocated (and there
+	// is no shared state), so that messages can be built in pooled send buffers, from any thread.
+	
+	public static ByteBuffer putHaveMessage(ByteBuffer have, int piece_index)
 	{
-		// Remember to adjust the allocate size if you change any of the parameter types
-		have = ByteBuffer.allocate(9);
-		have.put(new byte[]{0,0,0,5,4}); // <length> = 5, <id> = 4
+		have.putInt(5); // <length> = 5
+		have.put((byte)4); // <id> = 4
 		have.putInt(piece_index); // <piece index>
-		return have.array();
+		return have;
 	}
-	public static byte[] getBitfieldMessage(byte[] bitfield_parameter)
+	public static ByteBuffer putBitfieldMessage(ByteBuffer bitfield, PieceSet pieces)
 	{
-		// Remember to adjust the allocate size if you change any of the parameter types
-		bitfield = ByteBuffer.allocate(5 + bitfield_parameter.length);
-		bitfield.putInt(1 + bitfield_parameter.length); // <length> = 5 + bitfield's length
+		bitfield.putInt(1 + pieces.bitfieldLength()); // <length> = 1 + bitfield's length
 		bitfield.put( (byte) 5); // <id> = 5
-		bitfield.put(bitfield_parameter); // <bitfield>
-		return bitfield.array();
+		pieces.putBitfield(bitfield); // <bitfield>
+		return bitfield;
 	}
-	public static byte[] getRequestMessage(int index, int begin, int length)
+	public static ByteBuffer putRequestMessage(ByteBuffer request, int index, int begin, int length)
 	{
-		// Remember to adjust the allocate size if you change any of the parameter types
-		request = ByteBuffer.allocate(17);
-		request.put(new byte[]{0,0,0,13,6}); // <length = 13>, <id> = 6
+		request.putInt(13); // <length = 13>
+		request.put((byte)6); // <id> = 6
 		request.putInt(index); // <index>
 		request.putInt(begin); // <begin>
 		request.putInt(length); // <length>
-		return request.array();
+		return request;
 	}
-	// Not done yet
-	public static byte[] getPieceMessage(int index, int begin, int block_length, byte[] block)
+	/**
+	 * Puts just the header of a Piece message (everything but the block itself), for when the block is sent
+	 * separately, straight from the file
+	 */
+	public static ByteBuffer putPieceHeader(ByteBuffer piece, int index, int begin, int block_length)
 	{
-		// Remember to adjust the allocate size if you change any of the parameter types
-		piece = ByteBuffer.allocate(13 + block_length);
 		piece.putInt(9 + block_length); // <length> = 9 + block_length
 		piece.put((byte)7); // <id> = 7
 		piece.putInt(index); // <index>
 		piece.putInt(begin); // <begin>
-		piece.put(block);
-		return piece.array();
+		return piece;
 	}
-	// Not done yet
-	public static byte[] getCancelMessage(int index, int begin, int length)
+	public static ByteBuffer putCancelMessage(ByteBuffer cancel, int index, int begin, int length)
 	{
-		// Remember to adjust the allocate size if you change any of the parameter types
-		cancel = ByteBuffer.allocate(17);
-		cancel.put(new byte[]{0,0,0,13,8}); // <length> = 13, <id> = 8
+		cancel.putInt(13); // <length> = 13
+		cancel.put((byte)8); // <id> = 8
 		cancel.putInt(index); // <index>
 		cancel.putInt(begin); // <begin>
 		cancel.putInt(length); // <length>
-		return cancel.array();
+		return cancel;
 	}
 	
 	/*
@@ -23,6 +23,11 @@ public class Peer
 {
 	// Constants:
 	public static final int BYTES_TO_ALLOCATE = 8192;
+	private static final int MAX_QUEUED_MESSAGE_LENGTH = 17; // the longest message (a Request or Cancel) that is queued after others
+	private static final int REQUEST_BATCH_DIVISOR = 4; // refill the request queue once this fraction of it has been answered
+	private static final int MAX_GATHERED_PIECES = 8; // the most Piece messages to send in one gathering write
+	private static final int RTT_DEVIATIONS = 4; // how many deviations of the round trip time to allow for on top of it
+	private static final long BACK_TO_BACK_TIME = 1000000; // a block that starts arriving within this many nanoseconds of the last one may have been queued behind it
 	private final String pstr = "BitTorrent protocol";
 	private final byte pstrlen = (byte)(pstr.length());
 	
@@ -31,8 +36,12 @@ public class Peer
 	public byte[] peer_id = new byte[20]; //20-byte string used as a unique ID for the client
 	public String ip;
 	public int port;
-	public BitSet completedPieces; // the parts that the peer this object represents has (renamed so its purpose is more obvious)
+	public PieceSet completedPieces; // the parts that the peer this object represents has (renamed so its purpose is more obvious)
 	public boolean isBitTortoisePeer; //true if peer is a fellow bit tortoise
+	public TorrentContext torrent; // the torrent that we are exchanging with this peer
+	public SelectorThread selectorThread; // the thread that owns this peer's connection
+	public SelectionKey key; // this peer's connection's key in that thread's selector
+	public volatile boolean interestStale; // whether the peer is queued up on its thread to have its interest set worked out again
 	public int blockSize = 16384;
 	
 	// Information about this client:
@@ -57,26 +66,45 @@ public class Peer
 	
 	public boolean sent_bitfield;
 	public List<BlockRequest> receiveRequests; // Pieces that this client is sending out (received requests)
-	public List<BlockRequest> sendRequests; // Requests that this client is sending out
+	public List<BlockRequest> parkedRequests; // received requests for pieces of a seed file that are waiting for the pieces to be checked (lazy seeding)
+	public List<Piece> piecesToVerify; // pieces that this peer has just finished for us, to be checked once we have let go of the torrent's lock
+	public List<Integer> seedPiecesToCheck; // unchecked pieces of a seed file that this peer has just asked for, likewise
+	public boolean readPaused; // whether our selector thread has stopped reading from this peer until the session's hash queue has room
+	public List<BlockRequest> sendRequests; // Requests that this client is sending out (only changed through addRequest and removeRequest)
+	public RequestTable requestIndex; // sendRequests, by block number
+	public Piece pickedPiece; // the piece that this peer was last given requests from (finished before another is started)
 	public BlockRequest blockRequest = null; //the block that you have requested for this peer to send you.
 	public List<BlockRequest> shouldCancel; // The block that we (this client) wish to cancel the next time we hit a sendMessage.  Remove this from the sendRequests before setting this!
 	
 	public long lastMessageSentTime;
 	// Status holders for what is being currently read
-	public ByteBuffer readBuffer;
-	public int bytesLeft;
+	public ByteBuffer readBuffer; // unprocessed bytes run from readCursor up to its position
+	public int readCursor;
+	public int payloadLeft; // bytes of the current Piece message's data (or unknown message's body) still to come
+	public boolean skippingPayload; // whether those bytes are being thrown away
 	public int bytesReadThisRound;
 	public int bytesSentThisRound;
 	
 	public ByteBuffer sendBuffer;
 	public int unsent;
 	
-	public int myMaxRequests;
-	public int numRequestsCompletedThisRound;
+	public int index; // this peer's number within its torrent (the owner of blocks in the torrent's BlockTable)
 	
-	private boolean unsentIsPiece;
+	public int myMaxRequests; // how many requests to keep in flight to this peer (worked out in updateMaxRequests)
+	public double throughput; // smoothed rate that this peer sends us block data at, in bytes per millisecond
+	public double rtt; // smoothed round trip time of a request, in milliseconds (0 until it has been measured)
+	public double rttDeviation; // smoothed difference between the round trip time and its samples, in milliseconds
+	public long throughputStart; // when the current throughput measurement started
+	public int throughputBytes; // block data received since then
+	public long lastBlockTime; // System.nanoTime() when the last block from this peer finished arriving (0 until one has)
 	
-	public BitSet advertisedPieces; // Pieces that we (this client) have advertised to other peers
+	public BlockRequest uploading; // the block whose Piece message we are part way through sending, or null
+	public int uploadSent; // how much of that block's data has been sent so far
+	public ByteBuffer[] gathered; // the header and data of each Piece message in a gathering write (headers at even indices)
+	public int gatheredStart; // the first of them that has not been sent completely
+	public int gatheredCount; // how many of them there are (0 when there is no gathering write going on)
+	
+	public PieceSet advertisedPieces; // Pieces that we (this client) have advertised to other peers
 	
 	/**
 	 * Constructor
@@ -98,24 +126,38 @@ public class Peer
 		this.shouldUnchoke = false;
 		this.shouldChoke = false;
 		this.receiveRequests = new ArrayList<BlockRequest>();
+		this.parkedRequests = new ArrayList<BlockRequest>();
+		this.piecesToVerify = new ArrayList<Piece>();
+		this.seedPiecesToCheck = new ArrayList<Integer>();
 		this.sendRequests = new ArrayList<BlockRequest>();
+		this.requestIndex = new RequestTable();
 		this.sent_bitfield = false;
 		this.shouldCancel = new ArrayList<BlockRequest>();
 		
-		this.readBuffer = ByteBuffer.allocate(BYTES_TO_ALLOCATE);
-		this.bytesLeft = 0;
+		this.readBuffer = null; // borrowed from the session's pool once we are connected
+		this.readCursor = 0;
+		this.payloadLeft = 0;
+		this.skippingPayload = false;
 		
 		this.myMaxRequests = BitTortoise.MIN_OUTSTANDING_REQUESTS;
-		this.numRequestsCompletedThisRound = 0;
+		this.throughput = 0;
+		this.rtt = 0;
+		this.rttDeviation = 0;
+		this.throughputStart = 0;
+		this.throughputBytes = 0;
 		
 		this.sendBuffer = null;
 		this.unsent = 0;
-		this.unsentIsPiece = false;
+		this.uploading = null;
+		this.uploadSent = 0;
+		this.gathered = null;
+		this.gatheredStart = 0;
+		this.gatheredCount = 0;
 		this.bytesReadThisRound = 0;
 		this.bytesSentThisRound = 0;
 		
-		this.completedPieces = new BitSet();
-		this.advertisedPieces = new BitSet();
+		this.completedPieces = new PieceSet(0); // sized for the torrent in setTorrent()
+		this.advertisedPieces = new PieceSet(0);
 		
 		try
 		{
@@ -159,13 +201,34 @@ public class Peer
 	{
 		for(BlockRequest br : this.sendRequests)
 		{
-			if(br.status != BlockRequest.FINISHED)
+			this.releaseRequest(br);
+			br.requestSlot = -1;
+		}
+		this.sendRequests.clear();
+		this.requestIndex.clear();
+		
+		// Whatever the throughput is once we are unchoked again, it shouldn't include the time spent waiting:
+		this.throughputStart = 0;
+		this.throughputBytes = 0;
+	}
+	
+	/**
+	 * Give back a block that we asked this peer for, so that it can be handed to someone else - unless it has been
+	 * finished, or (in endgame mode) another peer has started sending it to us.
+	 * @param br the request
+	 */
+	private void releaseRequest(BlockRequest br)
+	{
+		if(br.getStatus() != BlockRequest.FINISHED && br.table.getOwner(br.block) == this.index)
+		{
+			br.release();
+			Piece piece = this.torrent.outstandingPieces[br.piece];
+			if(piece != null)
 			{
-				br.status = BlockRequest.UNASSIGNED;
-				br.bytesRead = 0;
+				piece.blockReleased(br.offset);
+				this.torrent.picker.blockReleased(piece);
 			}
 		}
-		this.sendRequests.clear();
 	}
 	
 	/**
@@ -175,11 +238,79 @@ public class Peer
 	{
 		this.bytesReadThisRound = 0;
 		this.bytesSentThisRound = 0;
+	}
+	
+	/**
+	 * Measure a request's round trip time: the time from sending it to the start of its data arriving.  Every request
+	 * is measured, so the estimate keeps up while the request queue is full.  If the data started arriving straight
+	 * after the previous block's, it may have been queued behind that block rather than waiting for the request, so it
+	 * only shows that the round trip is no longer than that and can only bring the estimate down.  If there was a gap
+	 * before it (or the request went out after the previous block had arrived), the peer had nothing to send until the
+	 * request reached it, so the time taken is the round trip itself.
+	 * @param br a request that this peer has just started to answer
+	 */
+	public void measureRoundTrip(BlockRequest br)
+	{
+		if(br.sentTime == 0)
+			return;
 		
-		if(this.numRequestsCompletedThisRound/BitTortoise.OUTSTANDING_REQUEST_RATE > this.myMaxRequests)
-			this.myMaxRequests /= BitTortoise.OUTSTANDING_REQUEST_RATE;
+		long now = System.nanoTime();
+		double sample = (now - br.sentTime) / 1000000.0;
+		boolean queued = (this.lastBlockTime > br.sentTime && now - this.lastBlockTime < BACK_TO_BACK_TIME);
+		br.sentTime = 0;
+		if(queued && this.rtt != 0 && sample >= this.rtt)
+			return;
+		if(this.rtt == 0)
+		{
+			this.rtt = sample;
+			this.rttDeviation = sample / 2;
+		}
+		else
+		{
+			// (the same smoothing as TCP uses for its retransmission timer)
+			this.rttDeviation = this.rttDeviation * 3 / 4 + Math.abs(this.rtt - sample) / 4;
+			this.rtt = this.rtt * 7 / 8 + sample / 8;
+		}
+		this.updateMaxRequests();
+	}
+	
+	/**
+	 * Count block data that has arrived from this peer, and update its throughput every THROUGHPUT_SAMPLE_TIME.
+	 * @param length the number of bytes that arrived
+	 * @param now the current time
+	 */
+	public void measureThroughput(int length, long now)
+	{
+		if(this.throughputStart == 0)
+			this.throughputStart = now;
+		this.throughputBytes += length;
 		
-		this.numRequestsCompletedThisRound = 0;
+		long elapsed = now - this.throughputStart;
+		if(elapsed >= BitTortoise.THROUGHPUT_SAMPLE_TIME)
+		{
+			double sample = this.throughputBytes / (double)elapsed;
+			this.throughput = (this.throughput == 0)? (sample) : (this.throughput * 3 / 4 + sample / 4);
+			this.throughputStart = now;
+			this.throughputBytes = 0;
+			this.updateMaxRequests();
+		}
+	}
+	
+	/**
+	 * Size this peer's request queue from its bandwidth-delay product (the amount of data that is on its way to us
+	 * at any time), so that a fast peer a long way off is never left waiting for our next request.  Asking for
+	 * OUTSTANDING_REQUEST_RATE times that much lets the queue keep growing for as long as the throughput does.  The
+	 * round trip is allowed RTT_DEVIATIONS times its deviation on top, so that a peer whose round trips vary a lot
+	 * (say, with how busy it is) still has enough requested to cover the slow ones.
+	 */
+	public void updateMaxRequests()
+	{
+		if(this.throughput == 0 || this.rtt == 0)
+			return;
+		
+		double bdp = this.throughput * (this.rtt + RTT_DEVIATIONS * this.rttDeviation);
+		int depth = (int)Math.ceil(BitTortoise.OUTSTANDING_REQUEST_RATE * bdp / BitTortoise.block_length);
+		this.myMaxRequests = Math.max(BitTortoise.MIN_OUTSTANDING_REQUESTS, Math.min(BitTortoise.MAX_OUTSTANDING_REQUESTS, depth));
 	}
 	
 	/**
@@ -223,7 +354,7 @@ public class Peer
 	 * @param completedPieces the pieces that we have already completed
 	 * @return whether there were any IOExceptions thrown that mean we should stop communicating with this peer
 	 */
-	public boolean sendMessage(SocketChannel sc, BitSet receivedPieces, BitSet inProgress, ArrayList<Piece> rarity)
+	public boolean sendMessage(SocketChannel sc, PieceSet receivedPieces, PieceSet inProgress, PiecePicker picker)
 	{
 		// Determine what it is that we need to send, if anything:
 		if(this.unsent > 0)
@@ -233,17 +364,8 @@ public class Peer
 			{
 				int sent = sc.write(this.sendBuffer);
 				this.unsent -= sent;
-				
-				if(this.unsentIsPiece)
-				{
-					this.bytesSentThisRound += sent;
-					BitTortoise.totalUploaded += sent;
-					
-					if(this.unsent == 0)
-					{
-						this.unsentIsPiece = false;
-					}
-				}
+				if(this.unsent == 0)
+					this.releaseSendBuffer();
 				
 				this.lastMessageSentTime = (new Date()).getTime();
 			}
@@ -251,15 +373,28 @@ public class Peer
 			{
 				return false;
 			}
+			
+			// If that was the header of a Piece message, carry on with the data:
+			if(this.unsent == 0 && this.uploading != null)
+				return this.sendPieceData(sc);
+		}
+		else if(this.uploading != null)
+		{
+			// We didn't finish sending the data of the last Piece message, so send the rest (or as much as possible):
+			return this.sendPieceData(sc);
+		}
+		else if(this.gatheredCount > 0)
+		{
+			// We didn't finish the last gathering write of Piece messages, so send the rest (or as much as possible):
+			return this.sendGathered(sc);
 		}
 		else if(!this.handshake_sent)
 		{
 			// We have not yet sent them a handshake, do so now:
 			try
 			{
-				this.sendBuffer = ByteBuffer.wrap(this.handshake);
-				int sent = sc.write(this.sendBuffer);
-				this.unsent = this.handshake.length - sent;
+				this.emptySendBuffer(this.handshake.length).put(this.handshake);
+				this.unsent = this.startSending(sc);
 				
 				this.lastMessageSentTime = (new Date()).getTime();
 				
@@ -277,17 +412,20 @@ public class Peer
 		{
 			// If we've gotten a handshake from them, we can do something:
 			
-			if(this.handshake_sent)
+			// Everything but the upload itself looks at state shared with the torrent's other peers.  Every message
+			// that is ready goes into the send buffer, and they are all sent together once we have let go of the lock:
+			boolean uploadPiece = false;
+			synchronized(this.torrent)
 			{
-				// If we've sent a handshake to them, we have completed the handshake
-				if(!receivedPieces.isEmpty() && !this.sent_bitfield)
+				boolean queued = true;
+				while(queued && !uploadPiece && this.queueSpace() >= MAX_QUEUED_MESSAGE_LENGTH)
 				{
-					try
+					queued = false;
+					
+					// If we've sent a handshake to them, we have completed the handshake
+					if(!receivedPieces.isEmpty() && !this.sent_bitfield)
 					{
-						byte[] bytesToSend = MessageLibrary.getBitfieldMessage(BitTortoise.byteArrayFromBitSet(receivedPieces, BitTortoise.totalPieceCount));
-						this.sendBuffer = ByteBuffer.wrap(bytesToSend);
-						int sent = sc.write(this.sendBuffer);
-						this.unsent = bytesToSend.length - sent;
+						MessageLibrary.putBitfieldMessage(this.queueBuffer(5 + receivedPieces.bitfieldLength()), receivedPieces);
 						
 						this.advertisedPieces.or(receivedPieces);
 						
@@ -297,21 +435,13 @@ public class Peer
 						
 						if(BitTortoise.verbose)
 							System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + this.ip + ":" + this.port + "): Sent Bitfield message.");
+						queued = true;
 					}
-					catch(IOException e)
+					else if((this.shouldChoke) || (this.shouldUnchoke))
 					{
-						return false;
-					}
-				}
-				else if((this.shouldChoke) || (this.shouldUnchoke))
-				{
-					if(!this.am_choking && this.shouldChoke)
-					{
-						try
+						if(!this.am_choking && this.shouldChoke)
 						{
-							this.sendBuffer = ByteBuffer.wrap(MessageLibrary.choke);
-							int sent = sc.write(this.sendBuffer);
-							this.unsent = MessageLibrary.choke.length - sent;
+							this.queueBuffer(MessageLibrary.choke.length).put(MessageLibrary.choke);
 							
 							this.am_choking = true;
 							
@@ -320,18 +450,9 @@ public class Peer
 							if(BitTortoise.verbose)
 								System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + this.ip + ":" + this.port + "): Sent Choke message.");
 						}
-						catch(IOException e)
-						{
-							return false;
-						}
-					}
-					else if(this.am_choking && this.shouldUnchoke)
-					{
-						try
+						else if(this.am_choking && this.shouldUnchoke)
 						{
-							this.sendBuffer = ByteBuffer.wrap(MessageLibrary.unchoke);
-							int sent = sc.write(this.sendBuffer);
-							this.unsent = MessageLibrary.unchoke.length - sent;
+							this.queueBuffer(MessageLibrary.unchoke.length).put(MessageLibrary.unchoke);
 							
 							this.am_choking = false;
 							
@@ -340,24 +461,16 @@ public class Peer
 							if(BitTortoise.verbose)
 								System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + this.ip + ":" + this.port + "): Sent Unchoke message.");
 						}
-						catch(IOException e)
-						{
-							return false;
-						}
+						this.shouldChoke = false;
+						this.shouldUnchoke = false;
+						this.sent_bitfield = true;
+						queued = true;
 					}
-					this.shouldChoke = false;
-					this.shouldUnchoke = false;
-					this.sent_bitfield = true;
-				}
-				else if((this.shouldInterest) || (this.shouldUninterest))
-				{
-					if(!this.am_interested && this.shouldInterest)
+					else if((this.shouldInterest) || (this.shouldUninterest))
 					{
-						try
+						if(!this.am_interested && this.shouldInterest)
 						{
-							this.sendBuffer = ByteBuffer.wrap(MessageLibrary.interested);
-							int sent = sc.write(this.sendBuffer);
-							this.unsent = MessageLibrary.interested.length - sent;
+							this.queueBuffer(MessageLibrary.interested.length).put(MessageLibrary.interested);
 							
 							this.am_interested = true;
 							
@@ -366,18 +479,9 @@ public class Peer
 							if(BitTortoise.verbose)
 								System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + this.ip + ":" + this.port + "): Sent Interested message.");
 						}
-						catch(IOException e)
-						{
-							return false;
-						}
-					}
-					else if(this.am_interested && this.shouldUninterest)
-					{
-						try
+						else if(this.am_interested && this.shouldUninterest)
 						{
-							this.sendBuffer = ByteBuffer.wrap(MessageLibrary.not_interested);
-							int sent = sc.write(this.sendBuffer);
-							this.unsent = MessageLibrary.not_interested.length - sent;
+							this.queueBuffer(MessageLibrary.not_interested.length).put(MessageLibrary.not_interested);
 							
 							this.am_interested = false;
 							
@@ -386,158 +490,98 @@ public class Peer
 							if(BitTortoise.verbose)
 								System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + this.ip + ":" + this.port + "): Sent Not Interested message.");
 						}
-						catch(IOException e)
-						{
-							return false;
-						}
+						this.shouldInterest = false;
+						this.shouldUninterest = false;
+						this.sent_bitfield = true;
+						queued = true;
 					}
-					this.shouldInterest = false;
-					this.shouldUninterest = false;
-					this.sent_bitfield = true;
-				}
-				else if(!this.shouldCancel.isEmpty())
-				{
-					// Send a cancel message
-					try
+					else if(!this.shouldCancel.isEmpty())
 					{
+						// Send a cancel message
 						BlockRequest br = this.shouldCancel.get(0);
-						byte[] bytesToSend = MessageLibrary.getCancelMessage(br.piece, br.offset, br.length);
-						this.sendBuffer = ByteBuffer.wrap(bytesToSend);
-						int sent = sc.write(this.sendBuffer);
-						this.unsent = bytesToSend.length - sent;
+						MessageLibrary.putCancelMessage(this.queueBuffer(17), br.piece, br.offset, br.length);
 						
 						this.lastMessageSentTime = (new Date()).getTime();
 						
 						if(BitTortoise.verbose)
 							System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + this.ip + ":" + this.port + "): Sent Cancel (" + br.piece + "," + br.offset + "," + br.length + ") message.");
 						
-						br.bytesRead = 0;
-						br.status = BlockRequest.UNASSIGNED;
+						this.releaseRequest(br);
 						
-						this.sendRequests.remove(br);
+						this.removeRequest(br);
 						this.shouldCancel.remove(0);
+						br.cancelling = false;
 						
-						this.fill(receivedPieces, inProgress, rarity);
-					}
-					catch(IOException e)
-					{
-						return false;
+						this.fill(receivedPieces, inProgress, picker);
+						this.sent_bitfield = true;
+						queued = true;
 					}
-					this.sent_bitfield = true;
-				}
-				else
-				{
-					if(this.am_interested && !this.peer_choking && !this.sendRequests.isEmpty())
+					else
 					{
-						long now = (new Date()).getTime();
-						// Send the next unsent request message:
-						for(BlockRequest br : this.sendRequests)
+						if(this.am_interested && !this.peer_choking && !this.sendRequests.isEmpty())
 						{
-							if(br.status == BlockRequest.UNREQUESTED)
+							long now = (new Date()).getTime();
+							// Send every unsent request message that fits:
+							for(BlockRequest br : this.sendRequests)
 							{
-								try
+								if(!br.requested)
 								{
-									byte[] bytesToSend = MessageLibrary.getRequestMessage(br.piece, br.offset, br.length);
-									this.sendBuffer = ByteBuffer.wrap(bytesToSend);
-									int sent = sc.write(this.sendBuffer);
-									this.unsent = bytesToSend.length - sent;
+									if(this.queueSpace() < 17)
+										break;
 									
-									br.timeModified = now;
-									br.status = BlockRequest.REQUESTED;
+									MessageLibrary.putRequestMessage(this.queueBuffer(17), br.piece, br.offset, br.length);
+									
+									br.requested = true;
+									br.sentTime = System.nanoTime();
+									br.setTimeModified(now);
+									if(br.getStatus() == BlockRequest.UNREQUESTED)
+										br.setStatus(BlockRequest.REQUESTED);
 									
 									this.lastMessageSentTime = (new Date()).getTime();
 									
 									if(BitTortoise.verbose)
 										System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + this.ip + ":" + this.port + "): Sent Request (" + br.piece + "," + br.offset + "," + br.length + ") message.");
+									queued = true;
 								}
-								catch(IOException e)
-								{
-									return false;
-								}
-								
-								return true;
-							}
-							else if(br.timeModified + 2*60*1000 < now)
-							{
-								this.shouldCancel.add(br);
-								
-								if(this.myMaxRequests == BitTortoise.MIN_OUTSTANDING_REQUESTS)
+								else if(br.getTimeModified() + 2*60*1000 < now && !br.cancelling)
 								{
-									this.shouldUninterest = true;
+									this.shouldCancel.add(br);
+									br.cancelling = true;
+									
+									if(this.myMaxRequests == BitTortoise.MIN_OUTSTANDING_REQUESTS)
+									{
+										this.shouldUninterest = true;
+									}
+									
+									this.myMaxRequests = BitTortoise.MIN_OUTSTANDING_REQUESTS;
+									queued = true;
 								}
-								
-								this.myMaxRequests = BitTortoise.MIN_OUTSTANDING_REQUESTS;
 							}
 						}
-					}
-					if(!this.am_choking && this.receiveRequests.size() != 0)
-					{
-						// Respond to a request for data with a Piece message
-						try
+						if(!this.am_choking && this.receiveRequests.size() != 0)
 						{
-							BlockRequest br = this.receiveRequests.remove(0);
-							byte[] bytesToSend = BitTortoise.getPiece(br.piece, br.offset, br.length);
-							this.sendBuffer = ByteBuffer.wrap(bytesToSend);
-							int sent = sc.write(this.sendBuffer);
-							this.unsent = bytesToSend.length - sent;
-							
-							this.lastMessageSentTime = (new Date()).getTime();
-							
-							this.bytesSentThisRound += sent;
-							BitTortoise.totalUploaded += sent;
-							
-							if(this.unsent == 0)
-							{
-								this.unsentIsPiece = false;
-							}
-							else
-							{
-								this.unsentIsPiece = true;
-							}
-							
-							if(BitTortoise.verbose)
-								System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + this.ip + ":" + this.port + "): Sent Piece (" + br.piece + "," + br.offset + "," + br.length + ") message.");
-							
-							return true;
-						}
-						catch(IOException e)
-						{
-							return false;
+							// Respond to a request for data with a Piece message (once we have let go of the torrent's lock)
+							uploadPiece = true;
 						}
-					}
-					else
-					{
-						if(this.am_interested && !this.peer_choking)
+						else
 						{
-							this.emptyFinishedRequests();
-							this.fill(receivedPieces, inProgress, rarity);
-						}
-						// Advertise new blocks that we have gotten
-						BitSet newPiecesToAdvertise = (BitSet)receivedPieces.clone();
-						newPiecesToAdvertise.andNot(this.advertisedPieces);
-						if(!newPiecesToAdvertise.isEmpty())
-						{
-							// This means that we have gotten new blocks since the last time this area ran:
-							// We need to do two things: 
-							// 1. Send a have message to them about this new piece
-							// 2. Change interested state based on whether or not they now have anything we don't
-							
-							// 1. Advertise ones that they haven't reported having first:
-							BitSet theyDontHave = (BitSet)newPiecesToAdvertise.clone();
-							theyDontHave.andNot(this.completedPieces);
-							if(!theyDontHave.isEmpty())
-								newPiecesToAdvertise = theyDontHave;
-							
-							// Pick a random one from newPiecesToAdvertise to send in a have message
-							int toSend = -1;
-							while(toSend == -1)
-								toSend = newPiecesToAdvertise.nextSetBit((int)(Math.random()*newPiecesToAdvertise.length()));
-							try
+							if(this.am_interested && !this.peer_choking)
+							{
+								this.emptyFinishedRequests();
+								if(this.fill(receivedPieces, inProgress, picker))
+									queued = true;
+							}
+							// Advertise new blocks that we have gotten
+							if(receivedPieces.hasAnyNotIn(this.advertisedPieces) && this.queueSpace() >= 9)
 							{
-								byte[] bytesToSend = MessageLibrary.getHaveMessage(toSend);
-								this.sendBuffer = ByteBuffer.wrap(bytesToSend);
-								int sent = sc.write(this.sendBuffer);
-								this.unsent = bytesToSend.length - sent;
+								// This means that we have gotten new blocks since the last time this area ran:
+								// We need to do two things: 
+								// 1. Send a have message to them about this new piece
+								// 2. Change interested state based on whether or not they now have anything we don't
+								
+								// 1. Advertise ones that they haven't reported having first:
+								int toSend = this.pickPieceToAdvertise(receivedPieces);
+								MessageLibrary.putHaveMessage(this.queueBuffer(9), toSend);
 								
 								this.advertisedPieces.set(toSend);
 								
@@ -545,82 +589,358 @@ public class Peer
 								
 								if(BitTortoise.verbose)
 									System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + this.ip + ":" + this.port + "): Sent Have (" + toSend + ") message.");
+								
+								// 2. Update interested status next time:
+								if(this.am_interested && !this.completedPieces.hasAnyNotIn(receivedPieces))
+									this.shouldUninterest = true;
+								
+								queued = true;
+								continue;
 							}
-							catch(IOException e)
-							{
-								return false;
-							}
-							
-							// 2. Update interested status next time:
-							BitSet need = (BitSet)this.completedPieces.clone();
-							need.andNot(receivedPieces);
 							
-							if(this.am_interested && need.isEmpty())
-								this.shouldUninterest = true;
-							
-							return true;
-						}
-						
-						long now = (new Date()).getTime();
-						if(now - this.lastMessageSentTime >= 2 * 60000) // if it has been 2 minutes, send a keep_alive message
-						{
-							// Otherwise, if there has been enough time since the last time a message was sent, send a keep-alive message
-							try
+							long now = (new Date()).getTime();
+							if(now - this.lastMessageSentTime >= 2 * 60000) // if it has been 2 minutes, send a keep_alive message
 							{
-								this.sendBuffer = ByteBuffer.wrap(MessageLibrary.keep_alive);
-								int sent = sc.write(this.sendBuffer);
-								this.unsent = MessageLibrary.keep_alive.length - sent;
+								// Otherwise, if there has been enough time since the last time a message was sent, send a keep-alive message
+								this.queueBuffer(MessageLibrary.keep_alive.length).put(MessageLibrary.keep_alive);
 								
 								this.lastMessageSentTime = (new Date()).getTime();
 								
 								if(BitTortoise.verbose)
 									System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + this.ip + ":" + this.port + "): Sent Keep-alive message.");
 							}
-							catch(IOException e)
-							{
-								return false;
-							}
 						}
 					}
+					this.sent_bitfield = true;
 				}
-				this.sent_bitfield = true;
 			}
+			
+			// Send everything that was queued up, with one write:
+			if(this.sendBuffer != null)
+			{
+				try
+				{
+					this.unsent = this.startSending(sc);
+				}
+				catch(IOException e)
+				{
+					return false;
+				}
+				
+				// Anything that did not fit goes out ahead of any upload, the next time the socket is writable:
+				if(this.unsent > 0)
+					return true;
+			}
+			
+			if(uploadPiece)
+				return this.sendPiece(sc);
 		}
 		
 		return true;
 	}
 	
-	//public boolean fill(BitSet receivedPieces, BitSet inProgress, Map<Integer,Piece> outstandingPieces)
-	public boolean fill(BitSet receivedPieces, BitSet inProgress, ArrayList<Piece> rarity)
+	/**
+	 * @return how many more bytes of messages can be queued up in the send buffer before it is sent
+	 */
+	private int queueSpace()
 	{
-		int i=0;
-		boolean madeChanges = false;
-		//make the rarest pieces first
-		Collections.shuffle(rarity);
-		Collections.sort(rarity, new rarityComparator());
-		int rareSize = rarity.size();
-		while(i < rareSize && this.sendRequests.size() < ((BitTortoise.useExtenstions)? (this.myMaxRequests) : (BitTortoise.MAX_OUTSTANDING_REQUESTS)))
-		{
-			int piecenum = rarity.get(i).pieceNum;
-			//if the peer contains this rare piece, fill requests, else increment i to go to the next rarest piece
-			if(this.completedPieces.get(piecenum))
+		if(this.sendBuffer == null)
+			return this.torrent.session.sendBuffers.getBufferSize();
+		return this.sendBuffer.remaining();
+	}
+	
+	/**
+	 * Make room at the end of the send buffer for one more message, which the caller then puts there.  The buffer is
+	 * borrowed from the session's pool if we do not have one already; a message too big for a pooled buffer (only
+	 * ever a large bitfield, which is the first message we send) gets a buffer of its own.
+	 * 
+	 * @param messageLength the length of the message (no more than queueSpace())
+	 * @return the send buffer, positioned after the messages queued so far
+	 */
+	private ByteBuffer queueBuffer(int messageLength)
+	{
+		if(this.sendBuffer == null)
+		{
+			BufferPool pool = this.torrent.session.sendBuffers;
+			this.sendBuffer = (messageLength > pool.getBufferSize())? (ByteBuffer.allocate(messageLength)) : (pool.borrow());
+			this.sendBuffer.clear();
+		}
+		return this.sendBuffer;
+	}
+	
+	/**
+	 * Get the send buffer ready for the next message.  The buffer is borrowed from the session's pool if we do not
+	 * have one already, and given back once everything in it has been sent; a message too big for a pooled buffer
+	 * (only ever a large bitfield) gets a buffer of its own.
+	 * 
+	 * @param messageLength the length of the message that is about to be put in the buffer
+	 * @return the empty send buffer
+	 */
+	private ByteBuffer emptySendBuffer(int messageLength)
+	{
+		BufferPool pool = this.torrent.session.sendBuffers;
+		if(messageLength > pool.getBufferSize())
+		{
+			this.releaseSendBuffer();
+			this.sendBuffer = ByteBuffer.allocate(messageLength);
+		}
+		else if(this.sendBuffer == null)
+		{
+			this.sendBuffer = pool.borrow();
+		}
+		this.sendBuffer.clear();
+		return this.sendBuffer;
+	}
+	
+	/**
+	 * Send as much as the socket will take of the message that has just been put in the send buffer.
+	 * 
+	 * @param sc the SocketChannel on which we should send the message
+	 * @return the number of bytes that are still to be sent
+	 */
+	private int startSending(SocketChannel sc) throws IOException
+	{
+		this.sendBuffer.flip();
+		sc.write(this.sendBuffer);
+		int left = this.sendBuffer.remaining();
+		if(left == 0)
+			this.releaseSendBuffer();
+		return left;
+	}
+	
+	/**
+	 * Give the send buffer back to the session's pool (if it came from there).
+	 */
+	public void releaseSendBuffer()
+	{
+		if(this.sendBuffer != null)
+			this.torrent.session.sendBuffers.giveBack(this.sendBuffer);
+		this.sendBuffer = null;
+	}
+	
+	/**
+	 * Respond to the first request in the queue with a Piece message.  The 13-byte header is sent from a buffer,
+	 * and the data is then sent straight from the file to the socket (see sendPieceData).  If the file is mapped
+	 * into memory, the first few requests are answered together instead, in one gathering write (see
+	 * gatherPieces).  This is called without holding the torrent's lock.
+	 * 
+	 * @param sc the SocketChannel on which we should send the piece
+	 * @return whether there were any IOExceptions thrown that mean we should stop communicating with this peer
+	 */
+	private boolean sendPiece(SocketChannel sc)
+	{
+		try
+		{
+			if(this.gatherPieces())
+				return this.sendGathered(sc);
+			
+			BlockRequest br = this.receiveRequests.remove(0);
+			MessageLibrary.putPieceHeader(this.emptySendBuffer(13), br.piece, br.offset, br.length);
+			this.unsent = this.startSending(sc);
+			
+			this.uploading = br;
+			this.uploadSent = 0;
+			
+			this.lastMessageSentTime = (new Date()).getTime();
+			
+			if(BitTortoise.verbose)
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + this.ip + ":" + this.port + "): Sent Piece (" + br.piece + "," + br.offset + "," + br.length + ") message.");
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+		
+		if(this.unsent == 0)
+			return this.sendPieceData(sc);
+		return true;
+	}
+	
+	/**
+	 * Line up Piece messages for as many of the queued requests as will go in one gathering write: each one is its
+	 * 13-byte header (in the send buffer) followed by a buffer over the block in the mapped file.
+	 * 
+	 * @return whether any were lined up (none are if the file is not mapped into memory)
+	 */
+	private boolean gatherPieces() throws IOException
+	{
+		if(this.gathered == null)
+			this.gathered = new ByteBuffer[2 * MAX_GATHERED_PIECES];
+		this.gatheredStart = 0;
+		this.gatheredCount = 0;
+		
+		while(this.gatheredCount < this.gathered.length && !this.receiveRequests.isEmpty())
+		{
+			BlockRequest br = this.receiveRequests.get(0);
+			ByteBuffer data = this.torrent.blockBuffer(br);
+			if(data == null)
+				break;
+			this.receiveRequests.remove(0);
+			
+			ByteBuffer buf = this.queueBuffer(13);
+			int start = buf.position();
+			MessageLibrary.putPieceHeader(buf, br.piece, br.offset, br.length);
+			ByteBuffer header = buf.duplicate();
+			header.position(start);
+			header.limit(start + 13);
+			
+			this.gathered[this.gatheredCount++] = header;
+			this.gathered[this.gatheredCount++] = data;
+			
+			if(BitTortoise.verbose)
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + this.ip + ":" + this.port + "): Sent Piece (" + br.piece + "," + br.offset + "," + br.length + ") message.");
+		}
+		return this.gatheredCount > 0;
+	}
+	
+	/**
+	 * Send as much as the socket will take of the Piece messages lined up by gatherPieces, with one gathering write.
+	 * 
+	 * @param sc the SocketChannel on which we are sending the pieces
+	 * @return whether there were any IOExceptions thrown that mean we should stop communicating with this peer
+	 */
+	private boolean sendGathered(SocketChannel sc)
+	{
+		try
+		{
+			int headersBefore = this.gatheredHeaderBytes();
+			long sent = sc.write(this.gathered, this.gatheredStart, this.gatheredCount - this.gatheredStart);
+			
+			// Only the blocks themselves count as uploaded:
+			long data = sent - (headersBefore - this.gatheredHeaderBytes());
+			
+			this.lastMessageSentTime = (new Date()).getTime();
+			
+			this.bytesSentThisRound += data;
+			this.torrent.addUploaded(data);
+			
+			while(this.gatheredStart < this.gatheredCount && !this.gathered[this.gatheredStart].hasRemaining())
 			{
-				for(BlockRequest br : rarity.get(i).blocks)
-				{
-					if(this.sendRequests.size() == ((BitTortoise.useExtenstions)? (this.myMaxRequests) : (BitTortoise.MAX_OUTSTANDING_REQUESTS)))
-						break;
-					if(br.status == BlockRequest.UNASSIGNED)
-					{
-						br.status = BlockRequest.UNREQUESTED;
-						this.sendRequests.add(br);
-						madeChanges = true;
-					}
-				}
+				this.gathered[this.gatheredStart] = null;
+				this.gatheredStart ++;
+			}
+			if(this.gatheredStart == this.gatheredCount)
+			{
+				this.gatheredStart = 0;
+				this.gatheredCount = 0;
+				this.releaseSendBuffer();
+			}
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return how many bytes of Piece headers in the gathering write are still to be sent
+	 */
+	private int gatheredHeaderBytes()
+	{
+		int bytes = 0;
+		for(int i = this.gatheredStart + (this.gatheredStart & 1); i < this.gatheredCount; i += 2)
+		{
+			bytes += this.gathered[i].remaining();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Send as much as the socket will take of the data of the block we are uploading, straight from the file
+	 * (with FileChannel.transferTo, or from the mapped file), without copying it through a buffer of our own.
+	 * 
+	 * @param sc the SocketChannel on which we are sending the piece
+	 * @return whether there were any IOExceptions thrown that mean we should stop communicating with this peer
+	 */
+	private boolean sendPieceData(SocketChannel sc)
+	{
+		try
+		{
+			long sent = this.torrent.transferBlock(this.uploading, this.uploadSent, sc);
+			this.uploadSent += sent;
+			
+			this.lastMessageSentTime = (new Date()).getTime();
+			
+			this.bytesSentThisRound += sent;
+			this.torrent.addUploaded(sent);
+			
+			if(this.uploadSent >= this.uploading.length)
+			{
+				this.uploading = null;
+				this.uploadSent = 0;
 			}
-			i++;
 		}
+		catch(IOException e)
+		{
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Have this peer's selector thread work out again whether it has anything to send the peer (see
+	 * SelectorThread.peerChanged).
+	 */
+	public void changed()
+	{
+		SelectorThread st = this.selectorThread;
+		if(st != null)
+			st.peerChanged(this);
+	}
+	
+	/**
+	 * Whether a call to sendMessage would currently send anything to this peer.  The main loop only asks
+	 * the selector for write readiness when this is true, so it must agree with the cases in sendMessage.
+	 * 
+	 * @param receivedPieces the pieces that we have already completed
+	 * @param now the current time in milliseconds
+	 * @return true if there is a message waiting to be sent (or a timer that has come due)
+	 */
+	public boolean hasPendingOutput(PieceSet receivedPieces, long now)
+	{
+		if(this.unsent > 0 || this.uploading != null || this.gatheredCount > 0 || !this.handshake_sent)
+			return true;
+		if(!this.handshake_received)
+			return false;
 		
-		return madeChanges;
+		if(!receivedPieces.isEmpty() && !this.sent_bitfield)
+			return true;
+		if(this.shouldChoke || this.shouldUnchoke || this.shouldInterest || this.shouldUninterest)
+			return true;
+		if(!this.shouldCancel.isEmpty())
+			return true;
+		
+		if(this.am_interested && !this.peer_choking)
+		{
+			for(BlockRequest br : this.sendRequests)
+			{
+				if(!br.requested || (br.getTimeModified() + 2*60*1000 < now && !br.cancelling))
+					return true;
+			}
+		}
+		if(!this.am_choking && this.receiveRequests.size() != 0)
+			return true;
+		
+		// We only ever advertise pieces that we have, so a difference in counts means there is a Have to send:
+		if(receivedPieces.cardinality() > this.advertisedPieces.cardinality())
+			return true;
+		
+		return (now - this.lastMessageSentTime >= 2 * 60000);
+	}
+	
+	//public boolean fill(BitSet receivedPieces, BitSet inProgress, Map<Integer,Piece> outstandingPieces)
+	public boolean fill(PieceSet receivedPieces, PieceSet inProgress, PiecePicker picker)
+	{
+		int maxRequests = ((BitTortoise.useExtenstions)? (this.myMaxRequests) : (BitTortoise.MAX_OUTSTANDING_REQUESTS));
+		
+		// Top the queue up a batch at a time, rather than by one request per block that arrives, so that the new
+		// requests go out together in one write:
+		if(this.sendRequests.size() > maxRequests - Math.max(1, maxRequests / REQUEST_BATCH_DIVISOR))
+			return false;
+		
+		//make the rarest pieces first
+		return picker.assignRequests(this, maxRequests);
 		
 		
 		/* OLD CODE, KEPT IN CASE THIS MESSES EVERYTHING UP
@@ -678,18 +998,99 @@ public class Peer
 		return madeChanges;*/
 	}
 	
+	/**
+	 * Pick a piece that we have but have not told this peer about yet, preferring ones that it does not have, and
+	 * starting from a random piece.
+	 * @param receivedPieces the pieces that we have
+	 * @return the piece, or -1 if we have told the peer about everything
+	 */
+	private int pickPieceToAdvertise(PieceSet receivedPieces)
+	{
+		int start = (int)(Math.random() * receivedPieces.size());
+		int fallback = -1;
+		
+		// Search from start to the end, then wrap around from the beginning back to start:
+		for(int pass = 0; pass < 2; pass ++)
+		{
+			int i = receivedPieces.nextSetBitNotIn(this.advertisedPieces, (pass == 0)? (start) : (0));
+			while(i >= 0 && (pass == 0 || i < start))
+			{
+				if(!this.completedPieces.get(i))
+					return i;
+				if(fallback == -1)
+					fallback = i;
+				i = receivedPieces.nextSetBitNotIn(this.advertisedPieces, i + 1);
+			}
+		}
+		return fallback;
+	}
+	
+	/**
+	 * Called when this peer is handed to a torrent, to size its piece sets for that torrent.
+	 * @param tc the torrent
+	 */
+	public void setTorrent(TorrentContext tc)
+	{
+		this.torrent = tc;
+		this.index = tc.nextPeerIndex ++;
+		this.completedPieces = new PieceSet(tc.totalPieceCount);
+		this.advertisedPieces = new PieceSet(tc.totalPieceCount);
+	}
+	
+	/**
+	 * Add a request to the ones that we are going to send this peer.
+	 * @param br the request (a view of a block in the torrent's BlockTable)
+	 */
+	public void addRequest(BlockRequest br)
+	{
+		br.requestSlot = this.sendRequests.size();
+		this.sendRequests.add(br);
+		this.requestIndex.put(br);
+	}
+	
+	/**
+	 * Forget about a request that we sent (or were going to send) this peer.  The last request in sendRequests is
+	 * moved into its slot, rather than shifting down every request after it.
+	 * @param br the request
+	 */
+	public void removeRequest(BlockRequest br)
+	{
+		int slot = br.requestSlot;
+		if(slot >= 0 && slot < this.sendRequests.size() && this.sendRequests.get(slot) == br)
+		{
+			BlockRequest last = this.sendRequests.remove(this.sendRequests.size() - 1);
+			if(last != br)
+			{
+				this.sendRequests.set(slot, last);
+				last.requestSlot = slot;
+			}
+			br.requestSlot = -1;
+		}
+		this.requestIndex.remove(br);
+	}
+	
 	public void emptyFinishedRequests()
 	{
-		// Cycle through the list and remove requests with a "status" of "BlockRequest.FINISHED"
-		Iterator<BlockRequest> it = this.sendRequests.iterator();
-		while(it.hasNext())
+		// Cycle through the list and remove requests with a "status" of "BlockRequest.FINISHED", moving the others
+		// down over them in one pass:
+		int kept = 0;
+		int count = this.sendRequests.size();
+		for(int i = 0; i < count; i ++)
 		{
-			BlockRequest br = it.next();
+			BlockRequest br = this.sendRequests.get(i);
 			
-			if(br.status == BlockRequest.FINISHED)
+			if(br.getStatus() == BlockRequest.FINISHED)
+			{
+				this.requestIndex.remove(br);
+				br.requestSlot = -1;
+			}
+			else
 			{
-				it.remove();
+				this.sendRequests.set(kept, br);
+				br.requestSlot = kept;
+				kept ++;
 			}
 		}
+		this.sendRequests.subList(kept, count).clear();
 	}
 }
@@ -1,69 +1,119 @@
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 
 
 public class Piece {
-	ArrayList<BlockRequest> blocks;
+	BlockTable table; // where the state of this piece's blocks is kept
 	int pieceNum;
-	int commonality;
+	int commonality; // how many of our peers have this piece
+	int pickerSlot; // where this piece is in its PiecePicker bucket, or -1 if it is not being picked from
+	boolean handedOut; // (while in the picker) every block has been handed out, so it is kept out of the buckets
+	MessageDigest digest; // running SHA-1 of the first hashedBytes bytes of this piece (null until the first byte arrives)
+	int hashedBytes;
+	ByteBuffer buffer; // the piece's data, kept in memory until it has been verified (null if it goes straight to the file)
+	boolean writtenThrough; // some of the piece has gone straight to the file, so it must not be given a buffer
 	
-	public Piece(int pieceNum) {
-		blocks = new ArrayList<BlockRequest>();
+	public Piece(int pieceNum, BlockTable table) {
+		this.table = table;
 		this.pieceNum = pieceNum;
 		this.commonality = 0;
+		this.pickerSlot = -1;
 	}
 	
-	public BlockRequest coalesceBlock(BlockRequest br) {
-		if (br.prev != null && br.prev.status == BlockRequest.UNASSIGNED) {
-			br.prev.length += br.length;
-			br.prev.next = br.next;
-			blocks.remove(br);
-			return br.prev;
-		}
-		else if (br.next != null && br.next.status == BlockRequest.UNASSIGNED) {
-			br.length += br.next.length;
-			br.next = br.next.next;
-			blocks.remove(br.next);
-			return br;
-		}
-		return null;
+	/**
+	 * @return the number of this piece's first block in the table
+	 */
+	public int firstBlock() {
+		return table.firstBlock(pieceNum);
 	}
 	
-	public BlockRequest splitBlock() {
-		//soo
-		return null;
+	/**
+	 * @return the number of blocks in this piece
+	 */
+	public int blockCount() {
+		return table.blocksInPiece(pieceNum);
 	}
 	
-	public BlockRequest addBlock(int offset, int length) {
-		BlockRequest br = new BlockRequest(pieceNum, offset, length);
-		blocks.add(br);
-		return br;
+	public void resetAll() {
+		int first = this.firstBlock();
+		for (int i=0; i<this.blockCount(); i++) {
+			table.release(first + i);
+		}
+		this.digest = null;
+		this.hashedBytes = 0;
+		this.writtenThrough = false;
 	}
 	
-	public BlockRequest addBlock(int offset, int length, BlockRequest a, BlockRequest b) {
-		BlockRequest br = new BlockRequest(pieceNum, offset, length, a, b);
-		blocks.add(br);
-		return br;
+	/**
+	 * Feed data that has just been stored into the running hash, if it carries on from exactly where the hash
+	 * left off.  Anything that arrives out of order is left for finishHash to read back from the file.
+	 * @param offset where the data starts, within this piece
+	 * @param data the data, from its position to its limit
+	 */
+	public void updateHash(int offset, ByteBuffer data) {
+		if (offset != this.hashedBytes)
+			return;
+		if (this.digest == null)
+			this.digest = SHA1Functions.getSha1Digest();
+		this.hashedBytes += data.remaining();
+		this.digest.update(data);
 	}
-
-	public BlockRequest getBlock(int offset) {
-		for (int i=0; i < blocks.size(); i++) {
-			if (blocks.get(i).offset == offset) {
-				return blocks.get(i);
-			}
+	
+	/**
+	 * Forget about a block that has been given back before it was finished (its data will be sent again, maybe by
+	 * another peer, and may not be the same).  If any of it has been fed into the running hash, the hash no longer
+	 * covers what will end up in the piece, so it is started over - finishHash reads the rest of the piece back.
+	 * @param offset where the block starts, within this piece
+	 */
+	public void blockReleased(int offset) {
+		if (offset < this.hashedBytes) {
+			this.digest = null;
+			this.hashedBytes = 0;
 		}
-		return null;
 	}
 	
-	public void resetAll() {
-		for (int i=0; i<blocks.size(); i++) {
-			blocks.get(i).status = BlockRequest.UNASSIGNED;
-			blocks.get(i).bytesRead = 0;
+	/**
+	 * Finish the running hash once every block has been stored, going back over only the part of the piece that did
+	 * not arrive in order (usually nothing) - from the piece's buffer if it has one, otherwise from the file.  The
+	 * running hash is reset afterwards.
+	 * @param storage where the piece was stored
+	 * @param pieceStart where the piece starts in the file
+	 * @param pieceLength the length of the piece
+	 * @return the SHA-1 hash of the piece
+	 */
+	public byte[] finishHash(Storage storage, long pieceStart, int pieceLength) throws IOException {
+		if (this.digest == null)
+			this.digest = SHA1Functions.getSha1Digest();
+		ByteBuffer buffer = this.buffer;
+		if (this.hashedBytes < pieceLength && buffer != null) {
+			ByteBuffer rest = buffer.duplicate();
+			rest.limit(pieceLength);
+			rest.position(this.hashedBytes);
+			this.digest.update(rest);
+		}
+		else if (this.hashedBytes < pieceLength) {
+			ByteBuffer buf = ByteBuffer.allocate(Math.min(pieceLength - this.hashedBytes, 65536));
+			long position = pieceStart + this.hashedBytes;
+			long end = pieceStart + pieceLength;
+			while (position < end) {
+				buf.clear();
+				buf.limit((int)Math.min(buf.capacity(), end - position));
+				storage.read(buf, position);
+				this.digest.update(buf.array(), 0, buf.position());
+				position += buf.position();
+			}
 		}
+		byte[] hash = this.digest.digest();
+		this.digest = null;
+		this.hashedBytes = 0;
+		return hash;
 	}
 	
 	public boolean allFinished() {
-		for (int i=0; i<blocks.size(); i++) {
-			if (blocks.get(i).status != BlockRequest.FINISHED) {
+		int first = this.firstBlock();
+		for (int i=0; i<this.blockCount(); i++) {
+			if (table.getStatus(first + i) != BlockRequest.FINISHED) {
 				return false;
 			}
 		}
@@ -74,9 +124,11 @@ public class Piece {
 	{
 		if(this.allFinished())
 			return false;
-		for(int i=0; i<blocks.size(); i++)
+		int first = this.firstBlock();
+		for(int i=0; i<this.blockCount(); i++)
 		{
-			if(blocks.get(i).status == BlockRequest.STARTED || blocks.get(i).status == BlockRequest.FINISHED)
+			int status = table.getStatus(first + i);
+			if(status == BlockRequest.STARTED || status == BlockRequest.FINISHED)
 			{
 				return true;
 			}
@@ -85,6 +137,6 @@ public class Piece {
 	}
 	
 	public String toString() {
-		return "Piece: " + pieceNum + " blocks: " + blocks + "\n";
+		return "Piece: " + pieceNum + " blocks: " + this.blockCount() + "\n";
 	}
 }
@@ -0,0 +1,142 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Whole pieces that we have read in to upload, kept in memory (up to a budget of bytes for the whole session, the
+ * least recently used piece going first) so that a peer working its way through a piece a block at a time costs one
+ * read of the piece instead of one for each block.  Pieces are only ever cached once they are complete, so they
+ * never change while they are in here.
+ *
+ * Any selector thread may use the cache; the buffers it hands out are never changed, so they may be read (through
+ * duplicates) by several threads at once.
+ */
+public class PieceCache
+{
+	private long capacity; // bytes
+	private long size; // bytes in the cache
+	private LinkedHashMap<Key, ByteBuffer> pieces; // in order of use, least recent first
+
+	// Statistics:
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Constructor
+	 * @param capacity the most bytes of pieces to keep (0 turns the cache off)
+	 */
+	public PieceCache(long capacity)
+	{
+		this.capacity = capacity;
+		this.size = 0;
+		this.pieces = new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+		this.hits = 0;
+		this.misses = 0;
+		this.evictions = 0;
+	}
+
+	/**
+	 * @return whether a piece of this length can be cached at all
+	 */
+	public boolean canHold(int pieceLength)
+	{
+		return pieceLength <= this.capacity;
+	}
+
+	/**
+	 * @param tc the torrent
+	 * @param piece the piece index
+	 * @return the piece's data (position 0, limit at its length), which must not be changed, or null if it is not in
+	 * the cache
+	 */
+	public synchronized ByteBuffer get(TorrentContext tc, int piece)
+	{
+		ByteBuffer data = this.pieces.get(new Key(tc, piece));
+		if(data == null)
+			this.misses ++;
+		else
+			this.hits ++;
+		return data;
+	}
+
+	/**
+	 * Add a piece that has just been read in, making room for it by dropping the least recently used pieces.
+	 * @param tc the torrent
+	 * @param piece the piece index
+	 * @param data the piece's data (position 0, limit at its length), which must not be changed from now on
+	 */
+	public synchronized void put(TorrentContext tc, int piece, ByteBuffer data)
+	{
+		if(!this.canHold(data.limit()))
+			return;
+
+		ByteBuffer old = this.pieces.put(new Key(tc, piece), data);
+		if(old != null)
+			this.size -= old.limit();
+		this.size += data.limit();
+
+		Iterator<ByteBuffer> it = this.pieces.values().iterator();
+		while(this.size > this.capacity && it.hasNext())
+		{
+			this.size -= it.next().limit();
+			it.remove();
+			this.evictions ++;
+		}
+	}
+
+	/**
+	 * Drop every piece of a torrent (once it has been closed).
+	 * @param tc the torrent
+	 */
+	public synchronized void removeTorrent(TorrentContext tc)
+	{
+		Iterator<Map.Entry<Key, ByteBuffer>> it = this.pieces.entrySet().iterator();
+		while(it.hasNext())
+		{
+			Map.Entry<Key, ByteBuffer> e = it.next();
+			if(e.getKey().torrent == tc)
+			{
+				this.size -= e.getValue().limit();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return a one line summary of how the cache is being used
+	 */
+	public synchronized String getStatistics()
+	{
+		return "Piece cache: " + this.pieces.size() + " pieces (" + this.size + " of " + this.capacity + " bytes), " + this.hits + " hits, " + this.misses + " misses, " + this.evictions + " evicted.";
+	}
+
+	/**
+	 * A piece of a particular torrent.
+	 */
+	private static class Key
+	{
+		TorrentContext torrent;
+		int piece;
+
+		Key(TorrentContext torrent, int piece)
+		{
+			this.torrent = torrent;
+			this.piece = piece;
+		}
+
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			return k.torrent == this.torrent && k.piece == this.piece;
+		}
+
+		public int hashCode()
+		{
+			return System.identityHashCode(this.torrent) * 31 + this.piece;
+		}
+	}
+}
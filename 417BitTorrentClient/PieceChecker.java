@@ -0,0 +1,245 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the SHA-1 hashes of the pieces that we already have on disk (when we start seeding, or resume a download),
+ * on every processor at once.  The pieces are split up into runs of neighbouring pieces, which are handed out
+ * through a fork-join pool; each run is read from start to end in large reads, into a buffer that each thread keeps
+ * for every run it checks, and hashed as it is read.  While the check goes on, its progress is printed every few
+ * seconds.
+ */
+public class PieceChecker
+{
+	public static final int READ_SIZE = 1024 * 1024; // bytes read at a time
+	public static final long RUN_LENGTH = 16L * 1024 * 1024; // bytes of pieces that a thread checks without splitting them up any more
+	public static final long PROGRESS_INTERVAL = 5000; // milliseconds between progress reports
+
+	private Storage storage;
+	private TorrentFile torrentFile;
+	private PieceSet pieces; // the pieces to check
+	private int totalPieces;
+	private AtomicInteger checked; // the number of pieces checked so far
+	private AtomicBoolean failed; // set once any piece does not match (or can not be read), to stop the others early
+
+	// Each thread that checks pieces keeps one of each of these:
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>()
+	{
+		protected ByteBuffer initialValue()
+		{
+			return ByteBuffer.allocate(READ_SIZE);
+		}
+	};
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>()
+	{
+		protected MessageDigest initialValue()
+		{
+			return SHA1Functions.getSha1Digest();
+		}
+	};
+
+	/**
+	 * Check some pieces of a torrent's file against the hashes in the .torrent file.
+	 * @param storage the file
+	 * @param torrentFile the torrent
+	 * @param pieces the pieces to check
+	 * @return whether every one of them matches
+	 */
+	public static boolean checkPieces(Storage storage, TorrentFile torrentFile, PieceSet pieces)
+	{
+		return (new PieceChecker(storage, torrentFile, pieces)).run();
+	}
+
+	/**
+	 * Check one piece of a torrent's file against its hash in the .torrent file, on the calling thread.
+	 * @param storage the file
+	 * @param torrentFile the torrent
+	 * @param piece the piece index
+	 * @return whether it matches (false if it could not be read)
+	 */
+	public static boolean checkPiece(Storage storage, TorrentFile torrentFile, int piece)
+	{
+		ByteBuffer buf = buffers.get();
+		MessageDigest digest = digests.get();
+		long position = piece * ((long)torrentFile.piece_length);
+		long end = Math.min(torrentFile.file_length, position + torrentFile.piece_length);
+		try
+		{
+			while(position < end)
+			{
+				buf.clear();
+				buf.limit((int)Math.min(buf.capacity(), end - position));
+				storage.read(buf, position);
+				buf.flip();
+				digest.update(buf);
+				position += buf.limit();
+			}
+		}
+		catch(IOException e)
+		{
+			digest.reset();
+			return false;
+		}
+		return Arrays.equals(digest.digest(), (byte[])torrentFile.piece_hash_values_as_binary.get(piece));
+	}
+
+	private PieceChecker(Storage storage, TorrentFile torrentFile, PieceSet pieces)
+	{
+		this.storage = storage;
+		this.torrentFile = torrentFile;
+		this.pieces = pieces;
+		this.totalPieces = pieces.size();
+		this.checked = new AtomicInteger(0);
+		this.failed = new AtomicBoolean(false);
+	}
+
+	private boolean run()
+	{
+		int toCheck = this.pieces.cardinality();
+		if(toCheck == 0)
+			return true;
+
+		int piecesPerRun = (int)Math.max(1, RUN_LENGTH / this.torrentFile.piece_length);
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try
+		{
+			CheckRange task = new CheckRange(0, this.totalPieces, piecesPerRun);
+			pool.execute(task);
+			while(true)
+			{
+				try
+				{
+					task.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+					break;
+				}
+				catch(TimeoutException e)
+				{
+					int done = this.checked.get();
+					System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Checked " + done + " of " + toCheck + " pieces (" + (done * 100L / toCheck) + "%).");
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			return false;
+		}
+		catch(ExecutionException e)
+		{
+			return false;
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		return !this.failed.get();
+	}
+
+	/**
+	 * Check the hashes of a run of pieces (the ones in the set), reading them from start to end.
+	 * @param from the first piece of the run
+	 * @param to the piece after the last one
+	 */
+	private void checkRun(int from, int to)
+	{
+		ByteBuffer buf = buffers.get();
+		MessageDigest digest = digests.get();
+		long pieceLength = this.torrentFile.piece_length;
+		long fileLength = this.torrentFile.file_length;
+
+		int i = this.pieces.nextSetBit(from);
+		while(i != -1 && i < to && !this.failed.get())
+		{
+			// Find the end of this stretch of pieces that are in the set, so that it can be read in one go:
+			int end = i + 1;
+			while(end < to && this.pieces.get(end))
+				end ++;
+
+			long position = i * pieceLength;
+			long stop = Math.min(fileLength, end * pieceLength);
+			long pieceEnd = Math.min(fileLength, position + pieceLength);
+			int piece = i;
+			try
+			{
+				while(position < stop && !this.failed.get())
+				{
+					buf.clear();
+					buf.limit((int)Math.min(buf.capacity(), stop - position));
+					this.storage.read(buf, position);
+					buf.flip();
+
+					// Hash what was read, finishing every piece that ends in it:
+					while(buf.hasRemaining())
+					{
+						int n = (int)Math.min(buf.remaining(), pieceEnd - position);
+						int limit = buf.limit();
+						buf.limit(buf.position() + n);
+						digest.update(buf);
+						buf.limit(limit);
+						position += n;
+
+						if(position == pieceEnd)
+						{
+							if(!Arrays.equals(digest.digest(), (byte[])this.torrentFile.piece_hash_values_as_binary.get(piece)))
+							{
+								this.failed.set(true);
+								return;
+							}
+							this.checked.incrementAndGet();
+							piece ++;
+							pieceEnd = Math.min(fileLength, position + pieceLength);
+						}
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				this.failed.set(true);
+			}
+			// (in case another thread failed part way through a piece)
+			digest.reset();
+
+			i = this.pieces.nextSetBit(end);
+		}
+	}
+
+	/**
+	 * The pieces from one index up to another, split in two until there are few enough of them for one thread.
+	 */
+	private class CheckRange extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int from;
+		private int to;
+		private int piecesPerRun;
+
+		CheckRange(int from, int to, int piecesPerRun)
+		{
+			this.from = from;
+			this.to = to;
+			this.piecesPerRun = piecesPerRun;
+		}
+
+		protected void compute()
+		{
+			if(this.to - this.from <= this.piecesPerRun)
+			{
+				checkRun(this.from, this.to);
+				return;
+			}
+
+			int middle = (this.from + this.to) >>> 1;
+			invokeAll(new CheckRange(this.from, middle, this.piecesPerRun), new CheckRange(middle, this.to, this.piecesPerRun));
+		}
+	}
+}
@@ -0,0 +1,252 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Keeps a torrent's outstanding pieces in order of rarity without ever sorting them: each piece sits in the bucket
+ * for its commonality (the number of our peers that have it), and moves one bucket up or down when a peer gains or
+ * loses it.  Every piece remembers its slot in its bucket, so adding, removing and moving a piece take constant time.
+ *
+ * A piece whose blocks have all been handed out is moved out of the buckets into a list of its own, so that the
+ * pieces that are being downloaded are not looked at again every time a peer wants more requests.  It goes back into
+ * its bucket if one of its blocks is given back, and the list is only picked from in the endgame.
+ *
+ * Like everything else that is shared by a torrent's peers, this is only used while holding the torrent's lock.
+ */
+public class PiecePicker
+{
+	private BlockTable table;
+	private ArrayList<ArrayList<Piece>> buckets; // buckets.get(n) holds the pieces that n of our peers have
+	private ArrayList<Piece> handedOut; // the pieces whose blocks have all been handed out (in no particular order)
+	private ArrayList<Piece> justHandedOut; // pieces whose last blocks assignRequests has handed out, to be moved there
+	private Random random; // for breaking ties between equally rare pieces
+	private int size;
+
+	/**
+	 * Constructor
+	 * @param table the torrent's blocks
+	 */
+	public PiecePicker(BlockTable table)
+	{
+		this.table = table;
+		this.buckets = new ArrayList<ArrayList<Piece>>();
+		this.handedOut = new ArrayList<Piece>();
+		this.justHandedOut = new ArrayList<Piece>();
+		this.random = new Random();
+		this.size = 0;
+	}
+
+	/**
+	 * @return the number of pieces being picked from
+	 */
+	public int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Start picking from a piece (filed under its current commonality, or with the pieces that have been handed out
+	 * if none of its blocks are left to hand out).
+	 * @param piece the piece, which must not be in the picker already
+	 */
+	public void add(Piece piece)
+	{
+		ArrayList<Piece> list;
+		piece.handedOut = (this.table.unassignedCount(piece.pieceNum) == 0);
+		if(piece.handedOut)
+			list = this.handedOut;
+		else
+		{
+			while(this.buckets.size() <= piece.commonality)
+				this.buckets.add(new ArrayList<Piece>());
+			list = this.buckets.get(piece.commonality);
+		}
+
+		piece.pickerSlot = list.size();
+		list.add(piece);
+		this.size ++;
+	}
+
+	/**
+	 * Stop picking from a piece (once it has been finished).  Pieces that are not in the picker are ignored.
+	 * @param piece the piece
+	 */
+	public void remove(Piece piece)
+	{
+		if(piece.pickerSlot < 0)
+			return;
+
+		// Fill the piece's slot with the last piece in its bucket:
+		ArrayList<Piece> list = (piece.handedOut)? (this.handedOut) : (this.buckets.get(piece.commonality));
+		Piece last = list.remove(list.size() - 1);
+		if(last != piece)
+		{
+			list.set(piece.pickerSlot, last);
+			last.pickerSlot = piece.pickerSlot;
+		}
+		piece.pickerSlot = -1;
+		this.size --;
+	}
+
+	/**
+	 * Put a piece back in its bucket if one of its blocks has been given back, so that it can be handed out again.
+	 * @param piece the piece (which is ignored if it is not in the picker)
+	 */
+	public void blockReleased(Piece piece)
+	{
+		if(piece.pickerSlot < 0 || !piece.handedOut)
+			return;
+		this.remove(piece);
+		this.add(piece);
+	}
+
+	/**
+	 * Count one more peer as having a piece.
+	 * @param piece the piece
+	 */
+	public void increment(Piece piece)
+	{
+		boolean picking = (piece.pickerSlot >= 0);
+		if(picking)
+			this.remove(piece);
+		piece.commonality ++;
+		if(picking)
+			this.add(piece);
+	}
+
+	/**
+	 * Count one less peer as having a piece (when a peer that had it goes away).
+	 * @param piece the piece
+	 */
+	public void decrement(Piece piece)
+	{
+		if(piece.commonality == 0)
+			return;
+
+		boolean picking = (piece.pickerSlot >= 0);
+		if(picking)
+			this.remove(piece);
+		piece.commonality --;
+		if(picking)
+			this.add(piece);
+	}
+
+	/**
+	 * Give a peer requests for blocks that nobody has been asked for yet, from the rarest pieces that the peer has
+	 * first (picking at random between pieces that are equally rare).  Pieces that none of our peers have told us
+	 * about come last.  The piece that the peer was last given requests from is finished off before any other is
+	 * started, so that as few pieces as possible are part way done (and held in the write cache) at once.
+	 *
+	 * Once every block has been handed out (the endgame), the peer is given requests for blocks that other peers have
+	 * been asked for but not yet finished sending, and whichever copy starts arriving first is kept.
+	 * @param p the peer
+	 * @param maxRequests the most requests that the peer should have outstanding
+	 * @return whether any requests were added
+	 */
+	public boolean assignRequests(Peer p, int maxRequests)
+	{
+		boolean madeChanges = false;
+		if(p.sendRequests.size() >= maxRequests)
+			return madeChanges;
+		boolean endgame = (this.table.unassignedCount() == 0);
+
+		Piece last = p.pickedPiece;
+		if(last != null && last.pickerSlot >= 0 && (endgame || !last.handedOut) && p.completedPieces.get(last.pieceNum))
+			madeChanges = this.assignFrom(p, last, maxRequests, endgame);
+
+		int count = this.buckets.size();
+		search:
+		for(int b = 1; b <= count && p.sendRequests.size() < maxRequests; b ++)
+		{
+			ArrayList<Piece> bucket = this.buckets.get(b % count);
+			int n = bucket.size();
+			if(n == 0)
+				continue;
+
+			// Start from a random piece in the bucket, and go round from there:
+			int start = this.random.nextInt(n);
+			for(int i = 0; i < n; i ++)
+			{
+				Piece piece = bucket.get((start + i) % n);
+
+				//if the peer contains this rare piece, fill requests, else go to the next rarest piece
+				if(!p.completedPieces.get(piece.pieceNum))
+					continue;
+
+				if(this.assignFrom(p, piece, maxRequests, endgame))
+					madeChanges = true;
+				if(p.sendRequests.size() >= maxRequests)
+					break search;
+			}
+		}
+
+		if(endgame && p.sendRequests.size() < maxRequests)
+		{
+			int n = this.handedOut.size();
+			int start = (n == 0)? (0) : (this.random.nextInt(n));
+			for(int i = 0; i < n; i ++)
+			{
+				Piece piece = this.handedOut.get((start + i) % n);
+				if(!p.completedPieces.get(piece.pieceNum))
+					continue;
+
+				if(this.assignFrom(p, piece, maxRequests, endgame))
+					madeChanges = true;
+				if(p.sendRequests.size() >= maxRequests)
+					break;
+			}
+		}
+
+		// The pieces that have just had the last of their blocks handed out are set aside until the endgame (now,
+		// rather than while going through the buckets, since taking one out moves another into its slot):
+		for(Piece piece : this.justHandedOut)
+		{
+			if(piece.pickerSlot >= 0 && !piece.handedOut && this.table.unassignedCount(piece.pieceNum) == 0)
+			{
+				this.remove(piece);
+				this.add(piece);
+			}
+		}
+		this.justHandedOut.clear();
+
+		return madeChanges;
+	}
+
+	/**
+	 * Give a peer requests for the blocks of one piece that nobody has been asked for yet (or, in the endgame, that
+	 * the peer hasn't been asked for), until it has as many as it should.
+	 * @return whether any requests were added
+	 */
+	private boolean assignFrom(Peer p, Piece piece, int maxRequests, boolean endgame)
+	{
+		boolean madeChanges = false;
+		int first = piece.firstBlock();
+		int blockCount = piece.blockCount();
+		for(int j = 0; j < blockCount; j ++)
+		{
+			if(p.sendRequests.size() >= maxRequests)
+				break;
+			int status = this.table.getStatus(first + j);
+			if(status == BlockRequest.UNASSIGNED)
+			{
+				// Only now does the block get an object of its own:
+				BlockRequest br = new BlockRequest(this.table, first + j);
+				br.setStatus(BlockRequest.UNREQUESTED);
+				this.table.setOwner(first + j, p.index);
+				p.addRequest(br);
+				madeChanges = true;
+			}
+			else if(endgame && status != BlockRequest.FINISHED && p.requestIndex.get(first + j) == null)
+			{
+				// Another view of the same block, which leaves its status and owner alone:
+				p.addRequest(new BlockRequest(this.table, first + j));
+				madeChanges = true;
+			}
+		}
+		if(madeChanges)
+			p.pickedPiece = piece;
+
+		if(!piece.handedOut && this.table.unassignedCount(piece.pieceNum) == 0)
+			this.justHandedOut.add(piece);
+		return madeChanges;
+	}
+}
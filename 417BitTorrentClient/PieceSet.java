@@ -0,0 +1,191 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-size set of piece indices, kept as a bitmap in an array of longs.  Unlike BitSet, it can answer questions
+ * about two sets at once ("do we have anything that they don't?", "what is the next piece that we have but have not
+ * advertised?") a word at a time, without cloning either of them, and it keeps count of how many pieces are in it.
+ */
+public class PieceSet
+{
+	private long[] words; // piece i is bit (i % 64) of words[i / 64]
+	private int size; // the number of pieces that this set covers
+	private int count; // the number of pieces in the set
+
+	/**
+	 * Constructor - an empty set.
+	 * @param size the number of pieces that the set covers (indices 0 to size - 1)
+	 */
+	public PieceSet(int size)
+	{
+		this.words = new long[(size + 63) / 64];
+		this.size = size;
+		this.count = 0;
+	}
+
+	/**
+	 * @return the number of pieces that the set covers
+	 */
+	public int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * @return the number of pieces in the set
+	 */
+	public int cardinality()
+	{
+		return this.count;
+	}
+
+	public boolean isEmpty()
+	{
+		return this.count == 0;
+	}
+
+	/**
+	 * @return whether piece i is in the set (false for anything outside of the pieces that the set covers)
+	 */
+	public boolean get(int i)
+	{
+		if(i < 0 || i >= this.size)
+			return false;
+		return (this.words[i >>> 6] & (1L << i)) != 0;
+	}
+
+	public void set(int i)
+	{
+		if(i < 0 || i >= this.size)
+			throw new IndexOutOfBoundsException("Piece " + i + " is not one of the " + this.size + " pieces in this set");
+		long bit = 1L << i;
+		if((this.words[i >>> 6] & bit) == 0)
+		{
+			this.words[i >>> 6] |= bit;
+			this.count ++;
+		}
+	}
+
+	public void clear(int i)
+	{
+		if(i < 0 || i >= this.size)
+			return;
+		long bit = 1L << i;
+		if((this.words[i >>> 6] & bit) != 0)
+		{
+			this.words[i >>> 6] &= ~bit;
+			this.count --;
+		}
+	}
+
+	public void set(int i, boolean value)
+	{
+		if(value)
+			this.set(i);
+		else
+			this.clear(i);
+	}
+
+	/**
+	 * Add (or remove) every piece from fromIndex up to (but not including) toIndex.
+	 */
+	public void set(int fromIndex, int toIndex, boolean value)
+	{
+		for(int i = fromIndex; i < toIndex; i ++)
+		{
+			this.set(i, value);
+		}
+	}
+
+	/**
+	 * @return the first piece in the set at or after fromIndex, or -1 if there are none
+	 */
+	public int nextSetBit(int fromIndex)
+	{
+		return this.nextSetBitNotIn(null, fromIndex);
+	}
+
+	/**
+	 * @return the first piece at or after fromIndex that is in this set but not in other (or -1 if there are none)
+	 */
+	public int nextSetBitNotIn(PieceSet other, int fromIndex)
+	{
+		if(fromIndex < 0)
+			fromIndex = 0;
+		if(fromIndex >= this.size)
+			return -1;
+
+		int w = fromIndex >>> 6;
+		long word = this.wordNotIn(other, w) & (-1L << fromIndex);
+		while(true)
+		{
+			if(word != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			w ++;
+			if(w >= this.words.length)
+				return -1;
+			word = this.wordNotIn(other, w);
+		}
+	}
+
+	/**
+	 * @return whether there is any piece in this set that is not in other
+	 */
+	public boolean hasAnyNotIn(PieceSet other)
+	{
+		for(int w = 0; w < this.words.length; w ++)
+		{
+			if(this.wordNotIn(other, w) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Add every piece in other to this set.
+	 */
+	public void or(PieceSet other)
+	{
+		int n = Math.min(this.words.length, other.words.length);
+		int newCount = 0;
+		for(int w = 0; w < this.words.length; w ++)
+		{
+			if(w < n)
+				this.words[w] |= other.words[w];
+			newCount += Long.bitCount(this.words[w]);
+		}
+		this.count = newCount;
+	}
+
+	/**
+	 * @return the length of this set as the payload of a Bitfield message
+	 */
+	public int bitfieldLength()
+	{
+		return (this.size + 7) / 8;
+	}
+
+	/**
+	 * Write this set as the payload of a Bitfield message (the high bit of the first byte is piece 0).
+	 * @param buf the buffer to write bitfieldLength() bytes to
+	 */
+	public void putBitfield(ByteBuffer buf)
+	{
+		int length = this.bitfieldLength();
+		for(int b = 0; b < length; b ++)
+		{
+			int bits = (int)(this.words[b >>> 3] >>> ((b & 7) << 3)) & 0xFF;
+			buf.put((byte)(Integer.reverse(bits) >>> 24));
+		}
+	}
+
+	/**
+	 * @return word w of this set, less anything in the same word of other (if other isn't null)
+	 */
+	private long wordNotIn(PieceSet other, int w)
+	{
+		long word = this.words[w];
+		if(other != null && w < other.words.length)
+			word &= ~other.words[w];
+		return word;
+	}
+}
@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * The blocks that we have asked one peer for, indexed by their number in the torrent's BlockTable, so that a Piece
+ * message can be matched to its request (and a request found to cancel it) without searching the peer's list of
+ * requests.  This is a hash table of ints with open addressing, so looking a block up does not box anything.
+ */
+public class RequestTable
+{
+	private static final int EMPTY = -1;
+
+	private int[] keys; // block numbers, or EMPTY
+	private BlockRequest[] values;
+	private int size;
+
+	/**
+	 * Constructor - an empty table.
+	 */
+	public RequestTable()
+	{
+		this.keys = new int[16];
+		this.values = new BlockRequest[16];
+		Arrays.fill(this.keys, EMPTY);
+		this.size = 0;
+	}
+
+	/**
+	 * @return the number of requests in the table
+	 */
+	public int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * @param block a block number
+	 * @return our request to this peer for that block, or null if there is none
+	 */
+	public BlockRequest get(int block)
+	{
+		int mask = this.keys.length - 1;
+		for(int i = slotFor(block, mask); this.keys[i] != EMPTY; i = (i + 1) & mask)
+		{
+			if(this.keys[i] == block)
+				return this.values[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Add a request (replacing any other request for the same block).
+	 * @param br the request, which must be a view of a block in a BlockTable
+	 */
+	public void put(BlockRequest br)
+	{
+		if((this.size + 1) * 2 > this.keys.length)
+			this.resize(this.keys.length * 2);
+
+		int mask = this.keys.length - 1;
+		int i = slotFor(br.block, mask);
+		while(this.keys[i] != EMPTY && this.keys[i] != br.block)
+			i = (i + 1) & mask;
+
+		if(this.keys[i] == EMPTY)
+			this.size ++;
+		this.keys[i] = br.block;
+		this.values[i] = br;
+	}
+
+	/**
+	 * Remove a request.  Nothing happens if the table holds a different request for the same block.
+	 * @param br the request
+	 */
+	public void remove(BlockRequest br)
+	{
+		int mask = this.keys.length - 1;
+		int i = slotFor(br.block, mask);
+		while(this.keys[i] != EMPTY && this.keys[i] != br.block)
+			i = (i + 1) & mask;
+		if(this.keys[i] == EMPTY || this.values[i] != br)
+			return;
+
+		// Close the gap, by moving back any entry after it that would no longer be found:
+		int j = i;
+		while(true)
+		{
+			j = (j + 1) & mask;
+			if(this.keys[j] == EMPTY)
+				break;
+			int home = slotFor(this.keys[j], mask);
+			boolean reachable = (i <= j)? (i < home && home <= j) : (i < home || home <= j);
+			if(reachable)
+				continue;
+			this.keys[i] = this.keys[j];
+			this.values[i] = this.values[j];
+			i = j;
+		}
+		this.keys[i] = EMPTY;
+		this.values[i] = null;
+		this.size --;
+	}
+
+	/**
+	 * Remove every request.
+	 */
+	public void clear()
+	{
+		Arrays.fill(this.keys, EMPTY);
+		Arrays.fill(this.values, null);
+		this.size = 0;
+	}
+
+	private void resize(int capacity)
+	{
+		int[] oldKeys = this.keys;
+		BlockRequest[] oldValues = this.values;
+		this.keys = new int[capacity];
+		this.values = new BlockRequest[capacity];
+		Arrays.fill(this.keys, EMPTY);
+		this.size = 0;
+		for(int i = 0; i < oldKeys.length; i ++)
+		{
+			if(oldKeys[i] != EMPTY)
+				this.put(oldValues[i]);
+		}
+	}
+
+	private static int slotFor(int block, int mask)
+	{
+		int h = block * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
@@ -1,56 +1,82 @@
 import java.util.*;
 import java.util.regex.*;
+import java.util.zip.CRC32;
 import java.io.*;
+import java.text.SimpleDateFormat;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
+/**
+ * Saves how far a download has got (every so often while it runs, and when the user quits), and picks it up again
+ * from there.  A resume file is always written in full to a temporary file first, which then takes its place, so a
+ * crash part way through saving leaves the last one whole.
+ *
+ * A resume file is binary, and is laid out as follows (all numbers are big-endian):
+ *   magic ("BTRI") and version - 4 bytes each
+ *   the torrent's info_hash - 20 bytes
+ *   the file length (8 bytes), the piece length, the block length and the number of pieces (4 bytes each)
+ *   the time at which the torrent's file was last modified when this was saved, read once the file had been forced
+ *   out to the disk (8 bytes, milliseconds - version 2 and up)
+ *   a bitfield of the pieces that we have, laid out like the payload of a Bitfield message
+ *   the number of pieces that are part way done (4 bytes), then for each of them its index (4 bytes) followed by a
+ *   bitmap of its finished blocks (high bit of the first byte first, rounded up to a whole byte), and then a CRC32 of
+ *   each of those blocks' data, in order (4 bytes each - version 3 and up)
+ *   a CRC32 of everything before it - 4 bytes
+ * Anything that does not match the torrent being resumed, or that fails the CRC, is turned down.  Resume files in
+ * the old text format (one line for each block of the unfinished pieces) can still be read.
+ *
+ * The finished blocks of the pieces that are part way done are read back from the torrent's file and checked
+ * against their CRC32s when we resume, and any that do not match are downloaded again (rather than the whole piece
+ * failing its hash once it is done).
+ *
+ * The pieces that a resume file says we have were forced out to the disk before it was saved, and are never written
+ * to again, so they are trusted without being read as long as the torrent's file is still the right length and was
+ * last modified no earlier than it had been when the resume file was saved (it is usually later, since blocks of
+ * other pieces go on being written after each save - right up to a crash).  A file that is shorter or longer, or
+ * older, looks like a different file, and its pieces are checked against their hashes.
+ */
 public class Resumer
 {
-	public static boolean resumeFromStopped(String resumeInfoFilename, RandomAccessFile destinationFile, TorrentFile torrentFile, Map<Integer, Piece> map, BitSet completed, BitSet inProgress, int totalPieces)
+	public static final int MAGIC = 0x42545249; // "BTRI"
+	public static final int VERSION = 3;
+	private static final int MODIFIED_OFFSET = 48; // where the time at which the torrent's file was last modified goes
+	
+	public static boolean resumeFromStopped(String resumeInfoFilename, String destinationFileName, Storage destinationFile, TorrentFile torrentFile, Piece[] pieces, BlockTable table, PieceSet completed, PieceSet inProgress, int totalPieces)
 	{
+		long savedModified = 0; // when the file was last modified when the resume file was saved (0 if we don't know)
 		completed.set(0, totalPieces, true);
 		inProgress.set(0, totalPieces, false);
 		
-		// Load all of the unfinished block requests from the file:
+		// Load the state of the unfinished pieces from the file:
 		try
 		{
 			File file = new File(resumeInfoFilename);
 			RandomAccessFile resumeFile = new RandomAccessFile(file, "rw");
 			
-			if(resumeFile.length() == 0)
-				return false;
+			byte[] data = new byte[(int)resumeFile.length()];
+			resumeFile.readFully(data);
+			
+			resumeFile.close();
 			
-			String s;
-			while((s = resumeFile.readLine()) != null)
+			if(data.length >= 4 && ByteBuffer.wrap(data).getInt(0) == MAGIC)
+				savedModified = loadStatus(data, destinationFile, torrentFile, pieces, table, completed, inProgress, totalPieces);
+			else
 			{
-				Piece p;
-				BlockRequest br = BlockRequest.fromString(s);
-				
-				if(br == null)
-					return false;
-				
-				// Destroy other state information:
-				if(br.status != BlockRequest.FINISHED)
-					br.status = BlockRequest.UNASSIGNED;
-				
-				if(map.containsKey(br.piece))
+				savedModified = (loadTextStatus(data, pieces, table, completed, inProgress))? (0) : (-1);
+				ByteBuffer block = ByteBuffer.allocate(BitTortoise.block_length);
+				for(int i = 0; i < totalPieces && savedModified == 0; i ++)
 				{
-					p = map.get(br.piece);
+					if(pieces[i] != null)
+						takeChecksums(destinationFile, torrentFile, table, i, block);
 				}
-				else
-				{
-					p = new Piece(br.piece);
-					map.put(br.piece, p);
-				}
-				p.blocks.add(br);
-				
-				if(br.status != BlockRequest.UNASSIGNED)
-					inProgress.set(br.piece, true);
-				
-				completed.set(br.piece, false);
 			}
+			if(savedModified < 0)
+				return false;
 			
-			resumeFile.setLength(0);
-			resumeFile.close();
-			file.delete();
+			// (the file is left where it is - it still holds, until the next one is saved over it)
 		}
 		catch(IOException e)
 		{
@@ -58,23 +84,29 @@ public class Resumer
 		}
 		catch(SecurityException e) { }
 		
+		// A piece whose blocks had all arrived, but whose hash had not been checked yet when we stopped, is only
+		// checked once a block of it arrives - so let its last block be downloaded again:
+		for(int i = 0; i < totalPieces; i ++)
+		{
+			if(pieces[i] != null && pieces[i].allFinished())
+				table.release(pieces[i].firstBlock() + pieces[i].blockCount() - 1);
+		}
+		
 		// Load all of the finished pieces (ones not in the map) from the destination file, check their hashes:
 		try
 		{
 			if(destinationFile.length() != torrentFile.file_length)
 				return false;
 			
-			// Cycle through completed pieces, check that their SHA1 hashes are equal:
-			int i = 0;
-			while((i = completed.nextSetBit(i)) != -1)
+			// Check that the SHA1 hashes of the completed pieces are equal, unless the file looks like the one that the
+			// resume file was saved for (the length was checked above):
+			if(savedModified > 0 && (new File(destinationFileName)).lastModified() >= savedModified)
 			{
-				byte[] sha = BitTortoise.getSha1FromFile(i, totalPieces, destinationFile, torrentFile);
-				if(!Arrays.equals(sha, (byte[])torrentFile.piece_hash_values_as_binary.get(i)))
-				{
-					return false;
-				}
-				i++;
+				if(BitTortoise.verbose)
+					System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": " + destinationFileName + " has not been replaced since the resume file was saved - taking its " + completed.cardinality() + " finished pieces as they are, without checking their hashes.");
 			}
+			else if(!PieceChecker.checkPieces(destinationFile, torrentFile, completed))
+				return false;
 		}
 		catch(IOException e)
 		{
@@ -84,37 +116,375 @@ public class Resumer
 		return true;
 	}
 	
-	public static boolean saveStatus(String resumeInfoFilename, Map<Integer, Piece> map)
+	/**
+	 * Read a binary resume file (see the top of this file for its layout), checking the finished blocks of the
+	 * pieces that are part way done against the torrent's file if it has their CRC32s.
+	 * @param data the whole file
+	 * @param destinationFile the torrent's file
+	 * @return the time at which the torrent's file was last modified when the resume file was saved (0 if it doesn't
+	 * say), or -1 if the resume file was not sound or does not belong to this torrent
+	 */
+	private static long loadStatus(byte[] data, Storage destinationFile, TorrentFile torrentFile, Piece[] pieces, BlockTable table, PieceSet completed, PieceSet inProgress, int totalPieces)
 	{
-		String endOfLine = System.getProperty("line.separator");
+		if(data.length < 4)
+			return -1;
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length - 4);
+		ByteBuffer buf = ByteBuffer.wrap(data, 0, data.length - 4);
+		if(ByteBuffer.wrap(data).getInt(data.length - 4) != (int)crc.getValue())
+			return -1;
+		
+		long savedModified = 0;
+		int blocksChecked = 0;
+		int blocksFailed = 0;
+		ByteBuffer block = ByteBuffer.allocate(BitTortoise.block_length);
 		try
 		{
-			RandomAccessFile resumeFile = new RandomAccessFile(resumeInfoFilename, "rw");
+			if(buf.getInt() != MAGIC)
+				return -1;
+			int version = buf.getInt();
+			if(version < 1 || version > VERSION)
+				return -1;
+			byte[] info_hash = new byte[20];
+			buf.get(info_hash);
+			if(!Arrays.equals(info_hash, torrentFile.info_hash_as_binary))
+				return -1;
+			if(buf.getLong() != torrentFile.file_length || buf.getInt() != torrentFile.piece_length || buf.getInt() != BitTortoise.block_length || buf.getInt() != totalPieces)
+				return -1;
+			if(version >= 2)
+				savedModified = Math.max(0, buf.getLong());
+			
+			// The pieces that we have:
+			int bitfieldStart = buf.position();
+			buf.position(bitfieldStart + (totalPieces + 7) / 8);
+			for(int i = 0; i < totalPieces; i ++)
+			{
+				if((buf.get(bitfieldStart + i / 8) & (0x80 >> (i % 8))) == 0)
+				{
+					pieces[i] = new Piece(i, table);
+					completed.set(i, false);
+				}
+			}
+			
+			// The finished blocks of the pieces that we don't have yet:
+			int partialCount = buf.getInt();
+			for(int n = 0; n < partialCount; n ++)
+			{
+				int i = buf.getInt();
+				if(i < 0 || i >= totalPieces || pieces[i] == null)
+					return -1;
+				
+				int first = table.firstBlock(i);
+				int blockCount = table.blocksInPiece(i);
+				int bitmapStart = buf.position();
+				buf.position(bitmapStart + (blockCount + 7) / 8);
+				for(int j = 0; j < blockCount; j ++)
+				{
+					if((buf.get(bitmapStart + j / 8) & (0x80 >> (j % 8))) != 0)
+					{
+						table.setStatus(first + j, BlockRequest.FINISHED);
+						inProgress.set(i, true);
+					}
+				}
+				if(version < 3)
+				{
+					// (there are no CRC32s to check against, so the blocks are taken as they are)
+					takeChecksums(destinationFile, torrentFile, table, i, block);
+					continue;
+				}
+				
+				// Check each finished block against what was stored, leaving the ones that don't match to be
+				// downloaded again:
+				boolean any = false;
+				for(int j = 0; j < blockCount; j ++)
+				{
+					if(table.getStatus(first + j) != BlockRequest.FINISHED)
+						continue;
+					
+					int saved = buf.getInt();
+					table.setChecksum(first + j, saved);
+					blocksChecked ++;
+					boolean matches;
+					try
+					{
+						matches = (fileChecksum(destinationFile, torrentFile, table, first + j, block) == saved);
+					}
+					catch(IOException e)
+					{
+						matches = false;
+					}
+					if(matches)
+						any = true;
+					else
+					{
+						table.release(first + j);
+						blocksFailed ++;
+					}
+				}
+				inProgress.set(i, any);
+			}
+		}
+		catch(BufferUnderflowException e)
+		{
+			return -1;
+		}
+		catch(IllegalArgumentException e)
+		{
+			// (a position past the end of the file)
+			return -1;
+		}
+		if(buf.hasRemaining())
+			return -1;
+		
+		if(BitTortoise.verbose && blocksChecked > 0)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Checked " + blocksChecked + " blocks of unfinished pieces, " + blocksFailed + " of which did not match and will be downloaded again.");
+		return savedModified;
+	}
+	
+	/**
+	 * Take the CRC32s of the finished blocks of a piece from the torrent's file, for a resume file that doesn't have
+	 * them (an old one), so that the next one that is saved does.  A block that can't be read is downloaded again.
+	 * @param piece the piece
+	 * @param buf somewhere to read a block into (at least a block long)
+	 */
+	private static void takeChecksums(Storage destinationFile, TorrentFile torrentFile, BlockTable table, int piece, ByteBuffer buf)
+	{
+		int first = table.firstBlock(piece);
+		int blockCount = table.blocksInPiece(piece);
+		for(int j = 0; j < blockCount; j ++)
+		{
+			if(table.getStatus(first + j) != BlockRequest.FINISHED)
+				continue;
+			try
+			{
+				table.setChecksum(first + j, fileChecksum(destinationFile, torrentFile, table, first + j, buf));
+			}
+			catch(IOException e)
+			{
+				table.release(first + j);
+			}
+		}
+	}
+	
+	/**
+	 * Read a resume file in the old text format, with a line for each block of every unfinished piece.
+	 * @param data the whole file
+	 * @return whether every line was a block of this torrent
+	 */
+	private static boolean loadTextStatus(byte[] data, Piece[] pieces, BlockTable table, PieceSet completed, PieceSet inProgress) throws IOException
+	{
+		if(data.length == 0)
+			return false;
+		
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data), "ISO-8859-1"));
+		String s;
+		while((s = reader.readLine()) != null)
+		{
+			BlockRequest br = BlockRequest.fromString(s);
 			
-			if(resumeFile.length() > 0)
+			if(br == null)
 				return false;
 			
-			for(Map.Entry<Integer, Piece> entry : map.entrySet())
+			// The block has to be one of the torrent's blocks:
+			int block = table.blockAt(br.piece, br.offset);
+			if(block == -1 || table.lengthOf(block) != br.length)
+				return false;
+			
+			// Destroy other state information:
+			if(br.getStatus() != BlockRequest.FINISHED)
+				table.release(block);
+			else
+				table.setStatus(block, BlockRequest.FINISHED);
+			
+			if(pieces[br.piece] == null)
+			{
+				pieces[br.piece] = new Piece(br.piece, table);
+			}
+			
+			if(br.getStatus() == BlockRequest.FINISHED)
+				inProgress.set(br.piece, true);
+			
+			completed.set(br.piece, false);
+		}
+		return true;
+	}
+	
+	/**
+	 * Put how far we have got with a torrent into the form of a resume file (see the top of this file for the
+	 * layout).  This has to be called while holding the torrent's lock, and only counts what is in the torrent's file
+	 * already - the blocks of pieces that are still being put together in the write cache are left out.
+	 * @param torrentFile the torrent
+	 * @param pieces the torrent's outstanding pieces (null for the ones that we have)
+	 * @param table the state of the torrent's blocks
+	 * @return the contents of the resume file (with the time at which the torrent's file was last modified left for
+	 * writeStatus to fill in)
+	 */
+	public static byte[] encodeStatus(TorrentFile torrentFile, Piece[] pieces, BlockTable table)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(torrentFile.info_hash_as_binary);
+			out.writeLong(torrentFile.file_length);
+			out.writeInt(torrentFile.piece_length);
+			out.writeInt(BitTortoise.block_length);
+			out.writeInt(pieces.length);
+			out.writeLong(0);
+			
+			// The pieces that we have:
+			PieceSet have = new PieceSet(pieces.length);
+			int partialCount = 0;
+			for(int i = 0; i < pieces.length; i ++)
 			{
-				Piece piece = (Piece)entry.getValue();
-				for(BlockRequest br : piece.blocks)
+				if(pieces[i] == null)
+					have.set(i);
+				else if(finishedBlockCount(pieces[i]) > 0)
+					partialCount ++;
+			}
+			ByteBuffer bitfield = ByteBuffer.allocate(have.bitfieldLength());
+			have.putBitfield(bitfield);
+			out.write(bitfield.array());
+			
+			// The finished blocks of the pieces that we don't have yet:
+			out.writeInt(partialCount);
+			for(int i = 0; i < pieces.length; i ++)
+			{
+				if(pieces[i] == null || finishedBlockCount(pieces[i]) == 0)
+					continue;
+				
+				out.writeInt(i);
+				int first = pieces[i].firstBlock();
+				int blockCount = pieces[i].blockCount();
+				byte[] bitmap = new byte[(blockCount + 7) / 8];
+				for(int j = 0; j < blockCount; j ++)
 				{
-					resumeFile.writeBytes(br.toPrintString() + endOfLine);
+					if(table.getStatus(first + j) == BlockRequest.FINISHED)
+						bitmap[j / 8] |= (byte)(0x80 >> (j % 8));
+				}
+				out.write(bitmap);
+				for(int j = 0; j < blockCount; j ++)
+				{
+					if(table.getStatus(first + j) == BlockRequest.FINISHED)
+						out.writeInt(table.getChecksum(first + j));
 				}
 			}
+			out.flush();
 			
-			resumeFile.close();
+			CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+			out.writeInt((int)crc.getValue());
+			out.flush();
+			return bytes.toByteArray();
 		}
 		catch(IOException e)
 		{
+			// (a ByteArrayOutputStream never throws this)
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Save a resume file, in place of any that is there already: it is written to a temporary file, which is forced
+	 * out to the disk and then renamed over the old one.
+	 * @param resumeInfoFilename the file to save to
+	 * @param status the contents of the file, from encodeStatus
+	 * @param fileModified when the torrent's file was last modified - read after everything that status counts has
+	 * been forced out to the disk, so that any later write to the file changes it
+	 * @return whether the file was saved
+	 */
+	public static boolean writeStatus(String resumeInfoFilename, byte[] status, long fileModified)
+	{
+		ByteBuffer buf = ByteBuffer.wrap(status);
+		buf.putLong(MODIFIED_OFFSET, fileModified);
+		CRC32 crc = new CRC32();
+		crc.update(status, 0, status.length - 4);
+		buf.putInt(status.length - 4, (int)crc.getValue());
+		
+		File target = new File(resumeInfoFilename);
+		File temp = new File(resumeInfoFilename + ".tmp");
+		try
+		{
+			FileOutputStream out = new FileOutputStream(temp);
+			try
+			{
+				out.write(status);
+				out.getFD().sync();
+			}
+			finally
+			{
+				out.close();
+			}
+			
+			try
+			{
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch(AtomicMoveNotSupportedException e)
+			{
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch(IOException e)
+		{
+			temp.delete();
 			return false;
 		}
 		return true;
 	}
 	
-	public static boolean checkSeed(RandomAccessFile sourceFile, TorrentFile torrentFile)
+	/**
+	 * @param data the data, from its position to its limit (which is moved to its limit)
+	 * @return the CRC32 of the data
+	 */
+	public static int checksum(ByteBuffer data)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int)crc.getValue();
+	}
+	
+	/**
+	 * Read a block back from the torrent's file and take its CRC32.
+	 * @param storage the torrent's file
+	 * @param torrentFile the torrent
+	 * @param table the torrent's blocks
+	 * @param block the block's number in the table
+	 * @param buf somewhere to read the block into (at least a block long)
+	 * @return the CRC32 of the block
+	 */
+	public static int fileChecksum(Storage storage, TorrentFile torrentFile, BlockTable table, int block, ByteBuffer buf) throws IOException
+	{
+		buf.clear();
+		buf.limit(table.lengthOf(block));
+		storage.read(buf, table.pieceOf(block) * ((long)torrentFile.piece_length) + table.offsetOf(block));
+		buf.flip();
+		return checksum(buf);
+	}
+	
+	/**
+	 * @return the number of blocks of a piece that have been finished and written to the torrent's file (none, if
+	 * the piece is still being put together in the write cache)
+	 */
+	private static int finishedBlockCount(Piece piece)
+	{
+		if(piece.buffer != null)
+			return 0;
+		int count = 0;
+		int first = piece.firstBlock();
+		for(int i = 0; i < piece.blockCount(); i ++)
+		{
+			if(piece.table.getStatus(first + i) == BlockRequest.FINISHED)
+				count ++;
+		}
+		return count;
+	}
+	
+	public static boolean checkSeed(Storage sourceFile, TorrentFile torrentFile)
 	{
-		int totalPieces = ((int)torrentFile.file_length/torrentFile.piece_length) + (((torrentFile.file_length % torrentFile.piece_length) == 0)? (0) : (1));
+		int totalPieces = ((int)(torrentFile.file_length/torrentFile.piece_length)) + (((torrentFile.file_length % torrentFile.piece_length) == 0)? (0) : (1));
 		
 		// Load all of the finished pieces (ones not in the map) from the destination file, check their hashes:
 		try
@@ -122,15 +492,11 @@ public class Resumer
 			if(sourceFile.length() != torrentFile.file_length)
 				return false;
 			
-			// Cycle through completed pieces, check that their SHA1 hashes are equal:
-			for(int i = 0; i < totalPieces; i++)
-			{
-				byte[] sha = BitTortoise.getSha1FromFile(i, totalPieces, sourceFile, torrentFile);
-				if(!Arrays.equals(sha, (byte[])torrentFile.piece_hash_values_as_binary.get(i)))
-				{
-					return false;
-				}
-			}
+			// Check that the SHA1 hashes of all of the pieces are equal:
+			PieceSet all = new PieceSet(totalPieces);
+			all.set(0, totalPieces, true);
+			if(!PieceChecker.checkPieces(sourceFile, torrentFile, all))
+				return false;
 		}
 		catch(IOException e)
 		{
@@ -27,6 +27,19 @@ public class SHA1Functions {
 		return digest;
 	}
 	
+	/**
+	 * @return a new SHA-1 MessageDigest, for hashing a piece a bit at a time
+	 */
+	public static MessageDigest getSha1Digest() {
+		MessageDigest md = null;
+		try{
+			md = MessageDigest.getInstance("SHA");
+		}catch(NoSuchAlgorithmException e){
+			System.exit(1);
+		}
+		return md;
+	}
+	
 	public static void printSha1HashAsHex(byte[] pieceBytes) {
 		for(byte b: pieceBytes){
 	    	   System.out.print(Integer.toHexString(b & 0xff) + " ");
@@ -0,0 +1,459 @@
+/**
+ * One of the Session's network threads.  Each SelectorThread has its own Selector and owns a shard of the
+ * session's connections, along with the Peer objects attached to them: only this thread reads from, writes to,
+ * or changes the registration of those channels.  Other threads hand it work through execute().
+ *
+ * State that is shared by all of the peers of a torrent (the pieces, the piece picker, completedPieces, and so on)
+ * is only touched while holding that torrent's lock - synchronized(torrent).
+ */
+
+import java.io.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.text.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class SelectorThread extends Thread
+{
+	private Session session;
+	private Selector select;
+	private ConcurrentLinkedQueue<Runnable> tasks; // work handed to us by other threads
+	private ConcurrentLinkedQueue<Peer> changedPeers; // peers whose interest sets have to be worked out again
+	private ArrayList<Peer> pausedPeers; // peers that we have stopped reading from until the session's hash queue has room
+	private DeadlineQueue deadlines;
+	private volatile boolean running;
+
+	/**
+	 * Constructor
+	 * @param session the session that this thread works for
+	 * @param number which of the session's threads this is (only used for its name)
+	 */
+	public SelectorThread(Session session, int number) throws IOException
+	{
+		this.session = session;
+		this.select = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.changedPeers = new ConcurrentLinkedQueue<Peer>();
+		this.pausedPeers = new ArrayList<Peer>();
+		this.deadlines = new DeadlineQueue();
+		this.running = true;
+		this.setName("BitTortoise selector " + number);
+	}
+
+	/**
+	 * Run a task on this thread, the next time it wakes up.
+	 * @param task the task
+	 */
+	public void execute(Runnable task)
+	{
+		this.tasks.add(task);
+		this.select.wakeup();
+	}
+
+	/**
+	 * Have this thread work out again whether it needs to write to one of its peers, the next time it wakes up (for
+	 * example, after another thread has finished a piece or changed who is choked).  Only the peers handed to this
+	 * are looked at, rather than every connection.
+	 * @param p the peer
+	 */
+	public void peerChanged(Peer p)
+	{
+		if(p.interestStale)
+			return;
+		p.interestStale = true;
+		this.changedPeers.add(p);
+		if(Thread.currentThread() != this)
+			this.select.wakeup();
+	}
+
+	/**
+	 * Run the tasks that have been handed to this thread.  Once the thread has stopped, the session calls this itself
+	 * to run anything that was handed to it afterwards (the results of the last pieces to be checked).
+	 */
+	public void runTasks()
+	{
+		Runnable task;
+		while((task = this.tasks.poll()) != null)
+		{
+			task.run();
+		}
+	}
+
+	/**
+	 * Start reading from the peers that we stopped reading from while the session's hash queue was full, now that it
+	 * has room.
+	 */
+	public void resumeReading()
+	{
+		this.execute(new Runnable()
+		{
+			public void run()
+			{
+				for(Peer p : pausedPeers)
+				{
+					p.readPaused = false;
+					peerChanged(p);
+				}
+				pausedPeers.clear();
+			}
+		});
+	}
+
+	/**
+	 * Hand a connection to this thread.  Registration happens on this thread, since registering with a selector
+	 * that another thread is blocked on would block until that thread woke up.
+	 * @param sc the connection
+	 * @param ops the operations to register for
+	 * @param p the peer on the other end, or null for an incoming connection that has not sent its handshake yet
+	 */
+	public void register(final SocketChannel sc, final int ops, final Peer p)
+	{
+		this.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					if(p != null)
+						p.selectorThread = SelectorThread.this;
+					SelectionKey key = sc.register(select, ops, p);
+					if(p != null)
+						p.key = key;
+				}
+				catch(ClosedChannelException e)
+				{
+					if(p != null)
+						p.torrent.removePeer(sc, p);
+					session.connectionClosed();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Close all of the connections on this thread that belong to one torrent.
+	 * @param tc the torrent
+	 * @param whenClosed run on this thread once they have been closed
+	 */
+	public void closeTorrentConnections(final TorrentContext tc, final Runnable whenClosed)
+	{
+		this.execute(new Runnable()
+		{
+			public void run()
+			{
+				for(SelectionKey key : select.keys())
+				{
+					if(key.isValid() && key.attachment() != null && ((Peer)key.attachment()).torrent == tc)
+					{
+						closeConnection(key);
+					}
+				}
+				whenClosed.run();
+			}
+		});
+	}
+
+	/**
+	 * Ask this thread to stop once it has finished what it is doing.
+	 */
+	public void shutdown()
+	{
+		this.running = false;
+		this.select.wakeup();
+	}
+
+	public void run()
+	{
+		this.deadlines.schedule(DeadlineQueue.KEEP_ALIVE, null, BitTortoise.KEEP_ALIVE_INTERVAL);
+
+		while(this.running)
+		{
+			int num;
+			try
+			{
+				// Block until a socket is ready, another thread wakes us, or the next timer is due:
+				num = this.select.select(this.deadlines.timeUntilNext((new Date()).getTime()));
+			}
+			catch(IOException e)
+			{
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error in select - " + e.getMessage());
+				break;
+			}
+
+			this.runTasks();
+
+			// Handle any timers that have expired:
+			DeadlineQueue.Deadline expired;
+			while((expired = this.deadlines.pollExpired((new Date()).getTime())) != null)
+			{
+				if(expired.event == DeadlineQueue.KEEP_ALIVE)
+				{
+					// Top up the request queues of peers that have run dry; stale requests and keep-alives
+					// are picked up when the interest sets are recalculated below
+					for(SelectionKey key : this.select.keys())
+					{
+						Peer p = (Peer)key.attachment();
+						if(key.isValid() && p != null)
+						{
+							this.peerChanged(p);
+							synchronized(p.torrent)
+							{
+								if(p.am_interested && !p.peer_choking && p.torrent.activePeerMap.containsKey(key.channel()))
+								{
+									p.emptyFinishedRequests();
+									p.fill(p.torrent.completedPieces, p.torrent.inProgress, p.torrent.picker);
+								}
+							}
+						}
+					}
+
+					this.deadlines.schedule(DeadlineQueue.KEEP_ALIVE, null, BitTortoise.KEEP_ALIVE_INTERVAL);
+				}
+			}
+
+			if(num > 0)
+			{
+				for(SelectionKey key : this.select.selectedKeys())
+				{
+					try
+					{
+						if(!key.isValid())
+						{
+							continue;
+						}
+						else if(key.isConnectable())
+						{
+							SocketChannel sc = (SocketChannel)key.channel();
+							Peer p = (Peer)key.attachment();
+							try
+							{
+								if(sc.finishConnect())
+								{
+									p.readBuffer = this.session.readBuffers.borrow();
+
+									if(BitTortoise.verbose)
+										System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Outgoing connection finished.");
+
+									key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+									synchronized(p.torrent)
+									{
+										p.torrent.pendingPeerMap.remove(sc);
+										p.torrent.activePeerMap.put(sc, p);
+									}
+								}
+								else
+								{
+									System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Could not open new connection to peer.");
+
+									this.closeConnection(key);
+								}
+							}
+							catch(IOException e)
+							{
+								System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Could not open new connection to peer.  " + e.getMessage());
+
+								this.closeConnection(key);
+							}
+						}
+						else if(key.isReadable())
+						{
+							// read, process inputs
+							// Check if this SocketChannel is already mapping to a peer - if not, we can only accept a handshake from it - if so, we are cool
+							Peer p = (Peer)key.attachment();
+							if(p != null)
+							{
+								if(!p.torrent.readAndProcess(p, (SocketChannel)key.channel(), true))
+								{
+									this.closeConnection(key);
+								}
+							}
+							else
+							{
+								this.receiveHandshake(key);
+							}
+						}
+
+						if(key.isValid() && key.isWritable())
+						{
+							// Attempt to write to this peer iff it is a peer that we have an active connection with
+							// Note: incoming connections from which we have not yet received the handshake will not have a Peer attached
+							Peer p = (Peer)key.attachment();
+							if(p != null)
+							{
+								p.sendMessage((SocketChannel)key.channel(), p.torrent.completedPieces, p.torrent.inProgress, p.torrent.picker);
+							}
+						}
+					}
+					catch(IOException e)
+					{
+						System.out.println("IO error - " + e.getMessage());
+						this.closeConnection(key);
+					}
+				}
+			}
+
+			// Clear the list (the peers in it have to have their interest sets worked out again):
+			for(SelectionKey key : this.select.selectedKeys())
+			{
+				if(key.attachment() != null)
+					this.peerChanged((Peer)key.attachment());
+			}
+			this.select.selectedKeys().clear();
+
+			// Only ask to write to peers that actually have something queued up to send them:
+			long now = (new Date()).getTime();
+			Peer p;
+			while((p = this.changedPeers.poll()) != null)
+			{
+				// (cleared first, so that a change made while we work this out queues the peer up again)
+				p.interestStale = false;
+				SelectionKey key = p.key;
+				if(key == null || !key.isValid())
+					continue;
+
+				// Peers are not read from while too many pieces are waiting to be checked:
+				int read = SelectionKey.OP_READ;
+				if(this.session.hashQueueFull())
+				{
+					read = 0;
+					if(!p.readPaused)
+					{
+						p.readPaused = true;
+						this.pausedPeers.add(p);
+					}
+				}
+				synchronized(p.torrent)
+				{
+					if(p.torrent.activePeerMap.containsKey(key.channel()))
+						key.interestOps(read | ((p.hasPendingOutput(p.torrent.completedPieces, now))? (SelectionKey.OP_WRITE) : (0)));
+				}
+			}
+		}
+
+		// Run anything that was handed to us while we were stopping:
+		this.runTasks();
+
+		// Close whatever connections are left, the same way as any other:
+		for(SelectionKey key : this.select.keys())
+		{
+			if(key.isValid() && key.channel() instanceof SocketChannel)
+				this.closeConnection(key);
+		}
+
+		try
+		{
+			this.select.close();
+		}
+		catch(IOException e)
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error closing selector!");
+		}
+	}
+
+	/**
+	 * Read the handshake from a connection that has not been matched to a torrent yet, and hand it to the torrent
+	 * with the matching info_hash.
+	 * @param key the connection's key
+	 */
+	private void receiveHandshake(SelectionKey key) throws IOException
+	{
+		SocketChannel sc = (SocketChannel)key.channel();
+		String ipAndPort = sc.socket().getInetAddress().getHostAddress() + ":" + sc.socket().getPort();
+
+		ByteBuffer buf = this.session.readBuffers.borrow();
+		int size;
+		try
+		{
+			size = sc.read(buf);
+		}
+		catch(IOException e)
+		{
+			this.session.readBuffers.giveBack(buf);
+			throw e;
+		}
+
+		// The other host is trying to disconnect (gracefully):
+		if(size < 0)
+		{
+			this.session.readBuffers.giveBack(buf);
+			this.closeConnection(key);
+
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + ipAndPort + "): Connection closed (gracefully).");
+			return;
+		}
+
+		if(size > 67 && BitTortoise.isHandshakeMessage(buf))
+		{
+			// Handshake Message Received:
+			byte[] external_info_hash = new byte[20];
+			byte[] external_peer_id = new byte[20];
+
+			for(int i = 0; i < 20; i++)
+			{
+				external_info_hash[i] = buf.get(28 + i);
+				external_peer_id[i] = buf.get(48 + i);
+			}
+
+			// Route the connection to the torrent it asked for:
+			TorrentContext tc = this.session.getTorrent(external_info_hash);
+			if(tc == null)
+			{
+				// Peer requested connection for an info hash we are not serving
+				if(BitTortoise.verbose)
+					System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + ipAndPort + "): Handshake for unknown info hash - disconnecting.");
+				this.session.readBuffers.giveBack(buf);
+				this.closeConnection(key);
+				return;
+			}
+
+			// Whatever followed the handshake is left in the buffer for the peer's decoder:
+			Peer connectedTo = tc.addIncomingPeer(sc, key, external_peer_id, buf, FrameDecoder.HANDSHAKE_LENGTH);
+			if(connectedTo == null)
+			{
+				// We have already got a connection to this peer
+				this.session.readBuffers.giveBack(buf);
+				this.closeConnection(key);
+				return;
+			}
+			connectedTo.selectorThread = this;
+
+			if(size > FrameDecoder.HANDSHAKE_LENGTH)
+			{
+				if(!tc.readAndProcess(connectedTo, sc, false))
+				{
+					this.closeConnection(key);
+				}
+			}
+		}
+		else
+		{
+			// ignore messages that are sent before a handshake, or short handshakes...
+			this.session.readBuffers.giveBack(buf);
+		}
+	}
+
+	/**
+	 * Close a connection, and remove its peer (if it has one) from its torrent.
+	 * @param key the connection's key
+	 */
+	private void closeConnection(SelectionKey key)
+	{
+		key.cancel();
+		SocketChannel sc = (SocketChannel)key.channel();
+		Peer p = (Peer)key.attachment();
+		if(p != null)
+			p.torrent.removePeer(sc, p);
+		try
+		{
+			if(sc.isOpen())
+				sc.close();
+		}
+		catch(IOException e)
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error closing socket!");
+		}
+		this.session.connectionClosed();
+	}
+}
@@ -0,0 +1,509 @@
+/**
+ * A Session hosts any number of torrents in one process.  It owns the things that only need to exist once:
+ * the peer id, the listening socket, and the per-torrent timers.  The session's own thread accepts and opens
+ * connections and runs the timers; the connections themselves are spread over a pool of SelectorThreads, each of
+ * which reads, parses and writes for its own shard.  Incoming connections are routed to the right TorrentContext
+ * by the info_hash in their handshake.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.text.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Session
+{
+	public byte[] my_peer_id = new byte[20]; // the peer id that this client is using
+	public String my_key; // the key sent to trackers
+	public int port; // the port we are listening on
+	public boolean continueSeeding; // keep running (seeding) after all of the torrents are done
+	public boolean quitNotReceived;
+	public AtomicInteger numConnections; // the number of TCP connections we currently have, across all torrents
+	public int numThreads; // the number of selector threads to spread connections over
+	public BufferPool readBuffers; // each connection's buffer for incoming messages
+	public BufferPool sendBuffers; // outgoing messages, until they have been sent
+	public PieceCache pieceCache; // pieces that have been read in to upload (when the files are not memory-mapped)
+	public WriteCache writeCache; // room for pieces that are being downloaded to be put together before they are written
+
+	private Map<ByteBuffer, TorrentContext> torrents; // keyed by a wrapped copy of the 20-byte info_hash
+	private ConcurrentLinkedQueue<TorrentContext> closedTorrents; // torrents taken out of the session whose connections have all been closed, to be finished off
+	private SelectorThread[] selectorThreads;
+	private int nextSelectorThread; // round robin index into selectorThreads for new connections
+	private Selector select; // only the server socket is registered here
+	private ThreadPoolExecutor hashPool; // checks the SHA-1 of finished pieces, off of the selector threads
+	private AtomicInteger hashesWaiting; // pieces that have been handed to hashPool and not checked yet
+	private ServerSocketChannel serverChannel;
+	private SelectionKey serverKey;
+	private DeadlineQueue deadlines;
+
+	/**
+	 * Constructor
+	 * @param port the port to listen on
+	 * @param continueSeeding whether to keep running once every torrent has completed
+	 * @param numThreads the number of selector threads to spread connections over
+	 */
+	public Session(int port, boolean continueSeeding, int numThreads)
+	{
+		this.port = port;
+		this.continueSeeding = continueSeeding;
+		this.quitNotReceived = true;
+		this.numConnections = new AtomicInteger(0);
+		this.numThreads = Math.max(1, numThreads);
+		this.torrents = new ConcurrentHashMap<ByteBuffer, TorrentContext>();
+		this.closedTorrents = new ConcurrentLinkedQueue<TorrentContext>();
+		this.deadlines = new DeadlineQueue();
+		this.readBuffers = new BufferPool("Read", Peer.BYTES_TO_ALLOCATE, BitTortoise.MAX_FREE_BUFFERS);
+		this.sendBuffers = new BufferPool("Send", BitTortoise.SEND_BUFFER_SIZE, BitTortoise.MAX_FREE_BUFFERS);
+		this.pieceCache = new PieceCache(BitTortoise.pieceCacheSize);
+		this.writeCache = new WriteCache(BitTortoise.writeCacheSize);
+
+		// Once HASH_QUEUE_LENGTH pieces are waiting to be checked, the selector threads stop reading from their
+		// peers until there is room again (see hashQueueFull) - this keeps us from reading in pieces faster than we
+		// can hash them, without a selector thread ever having to hash one itself
+		int hashThreads = Runtime.getRuntime().availableProcessors();
+		this.hashesWaiting = new AtomicInteger(0);
+		this.hashPool = new ThreadPoolExecutor(hashThreads, hashThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "BitTortoise hasher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		this.my_key = new String();
+		for(int i = 0; i < 8; i++)
+			this.my_key += Integer.toHexString((int)(Math.random() * 16.0));
+
+		// Generate a peer_id:
+		my_peer_id[0] = (byte)'-'; // Replace the beginning of the id with "-BT0001-" to mimic normal naming schemes
+		my_peer_id[1] = (byte)'B';
+		my_peer_id[2] = (byte)'T';
+		my_peer_id[3] = (byte)'0';
+		my_peer_id[4] = (byte)'0';
+		my_peer_id[5] = (byte)'0';
+		my_peer_id[6] = (byte)'1';
+		my_peer_id[7] = (byte)'-';
+		for(int i = 8; i < my_peer_id.length; i ++)
+			my_peer_id[i] = (byte)((Math.random() * 0x5F) + 0x20); // make sure these are printable characters (range from 0x20 to 0x7E)
+	}
+
+	/**
+	 * Add a torrent (that has already been opened) to this session.
+	 * @param tc the torrent
+	 */
+	public void addTorrent(TorrentContext tc)
+	{
+		this.torrents.put(ByteBuffer.wrap(tc.torrentFile.info_hash_as_binary.clone()), tc);
+
+		this.deadlines.schedule(DeadlineQueue.UNCHOKE_ROUND, tc, BitTortoise.UNCHOKE_INTERVAL);
+		if(!tc.unverifiedPieces.isEmpty())
+			tc.startSeedCheck();
+		if(!tc.initialSeeding)
+			this.deadlines.schedule(DeadlineQueue.CHECKPOINT, tc, BitTortoise.CHECKPOINT_INTERVAL);
+		if(tc.tracker != null)
+			this.deadlines.schedule(DeadlineQueue.TRACKER_ANNOUNCE, tc, tc.tracker.min_interval * 1000);
+	}
+
+	/**
+	 * @param info_hash a 20-byte info_hash from a handshake
+	 * @return the torrent with that info_hash, or null if we are not serving it
+	 */
+	public TorrentContext getTorrent(byte[] info_hash)
+	{
+		return this.torrents.get(ByteBuffer.wrap(info_hash));
+	}
+
+	/**
+	 * @return whether any of the torrents in this session are still downloading
+	 */
+	public boolean anyIncomplete()
+	{
+		for(TorrentContext tc : this.torrents.values())
+		{
+			if(tc.isIncomplete)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the selector thread that the next new connection should be given to
+	 */
+	public SelectorThread nextSelectorThread()
+	{
+		SelectorThread st = this.selectorThreads[this.nextSelectorThread];
+		this.nextSelectorThread = (this.nextSelectorThread + 1) % this.selectorThreads.length;
+		return st;
+	}
+
+	/**
+	 * Check the SHA-1 hash of a piece whose blocks have all arrived, on one of the hashing threads.  The result is
+	 * handed back to the given selector thread, which updates the torrent.
+	 * @param tc the torrent that the piece belongs to
+	 * @param piece the piece to check (nothing else touches it until the result is in)
+	 * @param callbackThread the selector thread that should record the result
+	 */
+	public void verifyPiece(final TorrentContext tc, final Piece piece, final SelectorThread callbackThread)
+	{
+		final int piece_index = piece.pieceNum;
+		this.hashesWaiting.incrementAndGet();
+		this.hashPool.execute(new Runnable()
+		{
+			public void run()
+			{
+				final boolean matches = tc.checkPieceHash(piece);
+				hashFinished();
+				callbackThread.execute(new Runnable()
+				{
+					public void run()
+					{
+						tc.pieceVerified(piece_index, matches);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Check the SHA-1 hash of a piece of a seed file that a peer has asked for before it has been checked (lazy
+	 * seeding), on one of the hashing threads.  The result is handed back to the given selector thread, which updates
+	 * the torrent and lets the requests for the piece go out (or not).
+	 * @param tc the torrent that the piece belongs to
+	 * @param piece_index the piece to check
+	 * @param callbackThread the selector thread that should record the result
+	 */
+	public void checkSeedPiece(final TorrentContext tc, final int piece_index, final SelectorThread callbackThread)
+	{
+		this.hashesWaiting.incrementAndGet();
+		this.hashPool.execute(new Runnable()
+		{
+			public void run()
+			{
+				final boolean matches = PieceChecker.checkPiece(tc.destinationFile, tc.torrentFile, piece_index);
+				hashFinished();
+				callbackThread.execute(new Runnable()
+				{
+					public void run()
+					{
+						tc.seedPieceVerified(piece_index, matches);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * @return whether so many pieces are waiting to be checked that the selector threads should stop reading from
+	 * their peers for now
+	 */
+	public boolean hashQueueFull()
+	{
+		return this.hashesWaiting.get() >= BitTortoise.HASH_QUEUE_LENGTH;
+	}
+
+	/**
+	 * Called on a hashing thread once a piece has been checked.  If that makes room in the hash queue, the selector
+	 * threads start reading from their peers again.
+	 */
+	private void hashFinished()
+	{
+		if(this.hashesWaiting.decrementAndGet() == BitTortoise.HASH_QUEUE_LENGTH - 1)
+		{
+			for(SelectorThread st : this.selectorThreads)
+				st.resumeReading();
+		}
+	}
+
+	/**
+	 * Save a torrent's resume file on one of the hashing threads, so that the main loop is not held up while the
+	 * torrent's file is forced out to the disk.
+	 * @param tc the torrent
+	 */
+	public void checkpoint(final TorrentContext tc)
+	{
+		this.hashPool.execute(new Runnable()
+		{
+			public void run()
+			{
+				tc.checkpoint();
+			}
+		});
+	}
+
+	/**
+	 * Wake up the session thread, so that it notices a change made by another thread (a finished torrent).  The
+	 * selector threads are told about changes to their peers through Peer.changed().
+	 */
+	public void wakeup()
+	{
+		if(this.select != null)
+			this.select.wakeup();
+	}
+
+	/**
+	 * Called by a selector thread once it has closed a connection.
+	 */
+	public void connectionClosed()
+	{
+		// If we had stopped accepting because we were full, start again:
+		if(this.numConnections.getAndDecrement() > BitTortoise.MAX_CONNECTIONS)
+			this.select.wakeup();
+	}
+
+	/**
+	 * The main loop - accept connections from peers, connect to peers, and transfer data for every torrent, until
+	 * they are all done (or forever, if we are to continue seeding) or the user quits.
+	 */
+	public void run() throws IOException
+	{
+		// Create the selector:
+		this.select = Selector.open();
+
+		// Create the server channel, set it to non-blocking mode
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.configureBlocking(false);
+
+		// Bind the socket represented by the server channel to a port:
+		this.serverChannel.socket().bind(new InetSocketAddress(this.port));
+
+		// Register this server channel within the selector:
+		this.serverKey = this.serverChannel.register(this.select, SelectionKey.OP_ACCEPT);
+
+		// Start the threads that will do the reading and writing:
+		this.selectorThreads = new SelectorThread[this.numThreads];
+		for(int i = 0; i < this.numThreads; i++)
+		{
+			this.selectorThreads[i] = new SelectorThread(this, i);
+			this.selectorThreads[i].start();
+		}
+
+		// Read commands from the console in the background so that we can block in select():
+		ConsoleReader console = new ConsoleReader(this.select);
+		console.start();
+
+		// Main Data processing loop:
+		while((this.anyIncomplete() || this.continueSeeding) && this.quitNotReceived)
+		{
+			// Block until a connection is waiting, a command is typed, another thread wakes us, or the next timer is due:
+			int num = this.select.select(this.deadlines.timeUntilNext((new Date()).getTime()));
+
+			String command;
+			while((command = console.nextCommand()) != null)
+			{
+				if(command.charAt(0) == 'q')
+				{
+					this.quitNotReceived = false;
+					break;
+				}
+				else if(command.charAt(0) == 'a' && command.indexOf(':') != -1)
+				{
+					// We don't know which torrents the new peer has, so offer it to all of them
+					String newIP = command.substring(2, command.indexOf(':')).trim();
+					String newPort = command.substring(command.indexOf(':') + 1).trim();
+					for(TorrentContext tc : this.torrents.values())
+					{
+						tc.peerList.add(new Peer(tc.torrentFile.info_hash_as_binary, new byte[20], this.my_peer_id, newIP, Integer.parseInt(newPort)));
+					}
+					System.out.println("Add Peer: " + newIP + ":" + newPort);
+				}
+			}
+			if(!this.quitNotReceived)
+				break;
+
+			// Handle any timers that have expired:
+			DeadlineQueue.Deadline expired;
+			while((expired = this.deadlines.pollExpired((new Date()).getTime())) != null)
+			{
+				TorrentContext tc = (TorrentContext)expired.attachment;
+				if(tc != null && !this.torrents.containsValue(tc))
+					continue;
+
+				if(expired.event == DeadlineQueue.UNCHOKE_ROUND)
+				{
+					synchronized(tc)
+					{
+						tc.unchokePeers();
+
+						tc.printStatus();
+					}
+					if(BitTortoise.verbose)
+					{
+						System.out.println(this.readBuffers.getStatistics());
+						System.out.println(this.sendBuffers.getStatistics());
+						System.out.println(this.pieceCache.getStatistics());
+						System.out.println(this.writeCache.getStatistics());
+					}
+
+					this.deadlines.schedule(DeadlineQueue.UNCHOKE_ROUND, tc, BitTortoise.UNCHOKE_INTERVAL);
+				}
+				else if(expired.event == DeadlineQueue.TRACKER_ANNOUNCE)
+				{
+					tc.reannounce();
+
+					this.deadlines.schedule(DeadlineQueue.TRACKER_ANNOUNCE, tc, Math.max(1, tc.tracker.min_interval) * 1000);
+				}
+				else if(expired.event == DeadlineQueue.CHECKPOINT)
+				{
+					this.checkpoint(tc);
+
+					this.deadlines.schedule(DeadlineQueue.CHECKPOINT, tc, BitTortoise.CHECKPOINT_INTERVAL);
+				}
+			}
+
+			if(num > 0 && this.serverKey.isAcceptable())
+			{
+				// Only accept new connections if we have less than a desirable number:
+				if(this.numConnections.get() <= BitTortoise.MAX_CONNECTIONS)
+				{
+					try
+					{
+						// Incoming Connection to the server channel/socket:
+						// Accept the connection, set it to not block:
+						SocketChannel newConnection = this.serverChannel.accept();
+						if(newConnection != null)
+						{
+							newConnection.configureBlocking(false);
+
+							// Hand the connection to a selector thread (we don't know which torrent it is for until we get their handshake)
+							this.numConnections.incrementAndGet();
+							this.nextSelectorThread().register(newConnection, SelectionKey.OP_READ, null);
+
+							if(BitTortoise.verbose)
+								System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + newConnection.socket().getInetAddress().getHostAddress() + ":" + newConnection.socket().getPort() + "): Incoming connection finished.");
+						}
+					}
+					catch(IOException e)
+					{
+						System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error receiving new connection from peer.");
+					}
+				}
+			}
+
+			// Clear the list:
+			this.select.selectedKeys().clear();
+
+			// Check the number of connections, add more if needed
+			for(TorrentContext tc : this.torrents.values())
+			{
+				tc.connectToPeers();
+			}
+
+			// Torrents that have finished are done with, unless we are sticking around to seed them:
+			if(!this.continueSeeding)
+			{
+				Iterator<TorrentContext> it = this.torrents.values().iterator();
+				while(it.hasNext())
+				{
+					TorrentContext tc = it.next();
+					if(!tc.isIncomplete)
+					{
+						this.closeTorrentConnections(tc);
+						it.remove();
+					}
+				}
+			}
+			this.finishClosedTorrents();
+
+			this.serverKey.interestOps((this.numConnections.get() <= BitTortoise.MAX_CONNECTIONS)? (SelectionKey.OP_ACCEPT) : (0));
+		}
+	}
+
+	/**
+	 * Stop the hashing and selector threads, and finish off every torrent that is still in the session (after the main
+	 * loop has ended).
+	 */
+	public void shutdown()
+	{
+		// Stop the selector threads first, so that nothing more is handed to the hashing threads:
+		if(this.selectorThreads != null)
+		{
+			for(SelectorThread st : this.selectorThreads)
+				st.shutdown();
+			for(SelectorThread st : this.selectorThreads)
+			{
+				try
+				{
+					st.join();
+				}
+				catch(InterruptedException e)
+				{
+					break;
+				}
+			}
+		}
+
+		// Then let the pieces that are being checked finish, so that their results are in the resume files (they are
+		// handed back to selector threads that have stopped, so they are recorded from here):
+		this.hashPool.shutdown();
+		try
+		{
+			this.hashPool.awaitTermination(60, TimeUnit.SECONDS);
+		}
+		catch(InterruptedException e)
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Interrupted while waiting for pieces to be checked.");
+		}
+		if(this.selectorThreads != null)
+		{
+			for(SelectorThread st : this.selectorThreads)
+				st.runTasks();
+		}
+
+		this.finishClosedTorrents();
+		for(TorrentContext tc : this.torrents.values())
+		{
+			tc.finish();
+		}
+		this.torrents.clear();
+	}
+
+	/**
+	 * Finish off the torrents that have been taken out of the session, once every selector thread has closed their
+	 * connections (until then, a selector thread could still be uploading from a torrent's file, or reading into it).
+	 */
+	private void finishClosedTorrents()
+	{
+		TorrentContext tc;
+		while((tc = this.closedTorrents.poll()) != null)
+		{
+			tc.finish();
+			this.pieceCache.removeTorrent(tc);
+		}
+	}
+
+	/**
+	 * Close all of the connections that belong to one torrent (which the selector threads do for themselves), and
+	 * then have the main loop finish it off.
+	 * @param tc the torrent
+	 */
+	private void closeTorrentConnections(final TorrentContext tc)
+	{
+		// The last selector thread to close its share of them hands the torrent back to be finished off:
+		final AtomicInteger threadsLeft = new AtomicInteger(this.selectorThreads.length);
+		for(SelectorThread st : this.selectorThreads)
+		{
+			st.closeTorrentConnections(tc, new Runnable()
+			{
+				public void run()
+				{
+					if(threadsLeft.decrementAndGet() == 0)
+					{
+						closedTorrents.add(tc);
+						wakeup();
+					}
+				}
+			});
+		}
+	}
+}
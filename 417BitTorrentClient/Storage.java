@@ -0,0 +1,67 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Where a torrent's data is kept on disk.  All reads and writes are positional, so any number of threads may use
+ * one Storage at once (as long as they do not write to the same bytes).
+ */
+public interface Storage
+{
+	/**
+	 * Fill the rest of dst with the bytes that start at position.
+	 * @param dst the buffer to read into (from its position to its limit)
+	 * @param position where to start reading
+	 * @throws EOFException if that would read past the end of the storage
+	 */
+	public void read(ByteBuffer dst, long position) throws IOException;
+
+	/**
+	 * Write all of the remaining bytes in src, starting at position.
+	 * @param src the buffer to write (from its position to its limit)
+	 * @param position where to start writing
+	 */
+	public void write(ByteBuffer src, long position) throws IOException;
+
+	/**
+	 * Write up to count bytes, starting at position, straight to a channel (without copying them through a buffer
+	 * of our own, where the implementation allows).  A non-blocking channel may take fewer than count bytes.
+	 * @param position where to start reading
+	 * @param count the most bytes to send
+	 * @param target the channel to send them to
+	 * @return the number of bytes that were sent
+	 */
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+	/**
+	 * Get a buffer whose contents are the storage's own bytes, so that data can be read from a socket straight into
+	 * the file (or written to one straight out of it).  Storage that can not do this (anything that is not mapped
+	 * into memory) returns null, and its data goes through our own buffers or transferTo instead.
+	 * @param position where the buffer should start
+	 * @param count the most bytes that will be put in it
+	 * @return a buffer over the storage from position, with at most count bytes remaining, or null
+	 */
+	public ByteBuffer directBuffer(long position, int count) throws IOException;
+	
+	/**
+	 * @return the length of the storage in bytes
+	 */
+	public long length() throws IOException;
+
+	/**
+	 * Set the length of the storage (only while nothing else is using it).
+	 * @param length the new length in bytes
+	 */
+	public void setLength(long length) throws IOException;
+
+	/**
+	 * Make sure that everything written so far is on the disk (so that a resume file saved afterwards can trust it,
+	 * even if the machine goes down).
+	 */
+	public void force() throws IOException;
+
+	/**
+	 * Make sure that everything is written out, and let go of the file.
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,1565 @@
+/**
+ * All of the state for a single torrent that is being transferred: the parsed .torrent file, the file on
+ * disk, which pieces are still outstanding, and the peers that we are connected to for it.  One Session
+ * hosts any number of these, and routes each connection to its TorrentContext by info_hash.
+ * 
+ * The peers of one torrent may be spread over several selector threads, so everything here that is shared between
+ * peers (the pieces, the picker, completedPieces, the peer maps, the peers' choking state) is guarded by this
+ * object's lock.  Reading from the file to upload a block, and the socket I/O itself, happen outside of it.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.text.*;
+import java.util.zip.CRC32;
+
+public class TorrentContext implements MessageHandler
+{
+	public Session session; // the session hosting this torrent (peer id, port, selector threads)
+	public String torrentFileName; // the .torrent file that this torrent was loaded from
+	public String destinationFileName; // the name of the file into which we are writing
+	public String resumeInfoFilename; // the resume info file we were started with, or null
+	public boolean initialSeeding; // whether we started out with the whole file
+	
+	public TorrentFile torrentFile; // the object into which the .torrent file is b-decoded
+	public Storage destinationFile; // The file into which we are writing
+	public BlockTable blocks; // the state of every block of the file
+	public Piece[] outstandingPieces; // indexed by piece number - null once a piece has been completed (or if we started with it)
+	public int outstandingCount; // the number of pieces in outstandingPieces
+	public PiecePicker picker; // the outstanding pieces, by rarity
+	public PieceSet completedPieces; // Whether the Pieces/blocks of the file are completed or not
+	public PieceSet inProgress;
+	public PieceSet unverifiedPieces; // pieces of a seed file that we advertise but have not checked the hashes of yet (lazy seeding)
+	public PieceSet checkingPieces; // unverified pieces that are being checked on a hashing thread because a peer asked for them
+	public int totalPieceCount;
+	
+	public Tracker tracker;
+	public List<Peer> peerList; // list of Peer objects that we got from the tracker
+	public long lastTrackerCommunication;
+	public Map<SocketChannel, Peer> activePeerMap;
+	public Map<SocketChannel, Peer> pendingPeerMap;
+	public Set<String> connectedIDs;
+	public int numConnections; // the number of TCP connections we currently have with other peers for this torrent
+	public int nextPeerIndex; // the index to give the next peer that is handed to this torrent
+	public int numUnchoked;
+	
+	public long totalUploaded;
+	public long totalDownloaded;
+	public volatile boolean isIncomplete;
+	public boolean checkpointing; // the resume file is being saved (only used while holding the lock)
+	public long startTime;
+	
+	/**
+	 * Constructor - nothing is read from disk until open() is called.
+	 * @param session the session that will host this torrent
+	 * @param torrentFileName the .torrent file to load
+	 * @param destinationFileName the file to write to, or null to use the .torrent file's name without ".torrent"
+	 * @param resumeInfoFilename a bit tortoise resume info file to resume from, or null
+	 * @param initialSeeding whether we are starting out with the whole file
+	 */
+	public TorrentContext(Session session, String torrentFileName, String destinationFileName, String resumeInfoFilename, boolean initialSeeding)
+	{
+		this.session = session;
+		this.torrentFileName = torrentFileName;
+		this.destinationFileName = destinationFileName;
+		this.resumeInfoFilename = resumeInfoFilename;
+		this.initialSeeding = initialSeeding;
+		
+		this.peerList = new LinkedList<Peer>();
+		this.activePeerMap = new HashMap<SocketChannel, Peer>();
+		this.pendingPeerMap = new HashMap<SocketChannel, Peer>();
+		this.connectedIDs = new TreeSet<String>();
+		this.numConnections = 0;
+		this.nextPeerIndex = 0;
+		this.numUnchoked = 0;
+		this.totalUploaded = 0;
+		this.totalDownloaded = 0;
+		this.totalPieceCount = 0;
+		this.isIncomplete = true;
+		this.checkpointing = false;
+		this.startTime = (new Date()).getTime();
+	}
+	
+	/**
+	 * Parse the .torrent file, create (or open) the destination file, and fill in the pieces that still need to be
+	 * downloaded - resuming or checking the seed file if we were asked to.
+	 */
+	public void open()
+	{
+		// Parse the torrent file.
+		this.torrentFile = new TorrentFile();
+		// Note: this was put in a try block because this sometimes breaks when reading a bad torrent file
+		try
+		{
+			TorrentFileHandler torrentFileHandler = new TorrentFileHandler();
+			torrentFile = torrentFileHandler.openTorrentFile(this.torrentFileName);
+		}
+		catch(Exception e)
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": The provided file was not of the appropriate format, or could not be read.");
+			System.exit(1);
+		}
+		
+		this.totalPieceCount = ((int)(this.torrentFile.file_length/this.torrentFile.piece_length)) + (((this.torrentFile.file_length % this.torrentFile.piece_length) == 0)? (0) : (1));
+		this.completedPieces = new PieceSet(this.totalPieceCount);
+		this.inProgress = new PieceSet(this.totalPieceCount);
+		this.unverifiedPieces = new PieceSet(this.totalPieceCount);
+		this.checkingPieces = new PieceSet(this.totalPieceCount);
+		this.blocks = new BlockTable(this.torrentFile.file_length, this.torrentFile.piece_length, BitTortoise.block_length);
+		this.picker = new PiecePicker(this.blocks);
+		this.outstandingPieces = new Piece[this.totalPieceCount];
+		this.outstandingCount = 0;
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Finished parsing torrent file.  Info Hash = " + this.torrentFile.info_hash_as_url);
+		
+		// Create the destination file:
+		try
+		{
+			// If we were not given a file name, use the string preceding ".torrent" in the torrent file:
+			// Ex. "testTorrentFile.txt.torrent" -> "testTorrentFile.txt"
+			if(this.destinationFileName == null)
+			{
+				this.destinationFileName = this.torrentFileName.substring(0,this.torrentFileName.lastIndexOf(".torrent"));
+			}
+			if(BitTortoise.useMappedStorage)
+				this.destinationFile = new MappedStorage(this.destinationFileName);
+			else
+				this.destinationFile = new FileStorage(this.destinationFileName);
+			
+			// Set the file to the total length of the file:
+			if(!this.initialSeeding && this.resumeInfoFilename == null)
+			{
+				this.destinationFile.setLength(torrentFile.file_length);
+			}
+		}
+		catch(IOException e)
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error creating file: " + e.getMessage());
+			System.exit(1);
+		}
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Finished creating destination file.");
+		
+		// If this is not a resume or a seeding attempt, fill the blocks in:
+		if(!this.initialSeeding && this.resumeInfoFilename == null)
+		{
+			// Every piece is outstanding (their blocks all start out UNASSIGNED in the table):
+			for(int i = 0; i < this.totalPieceCount; i++)
+			{
+				this.outstandingPieces[i] = new Piece(i, this.blocks);
+			}
+			
+			if(BitTortoise.verbose)
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Finished filling table of blocks.");
+		}
+		else
+		{
+			// Do resuming/seeding checks, and resume/seed if necessary
+			if(this.resumeInfoFilename != null)
+			{
+				if(!Resumer.resumeFromStopped(this.resumeInfoFilename, this.destinationFileName, destinationFile, this.torrentFile, this.outstandingPieces, this.blocks, this.completedPieces, this.inProgress, this.totalPieceCount))
+				{
+					System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Could not resume from the given file.");
+					System.exit(1);
+				}
+				else
+				{
+					if(BitTortoise.verbose)
+						System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Resumed from the given file...");
+				}
+			}
+			if(this.initialSeeding && BitTortoise.lazySeeding)
+			{
+				// Start seeding straight away, and check each piece in the background (or when it is first asked for):
+				boolean rightLength;
+				try
+				{
+					rightLength = (destinationFile.length() == this.torrentFile.file_length);
+				}
+				catch(IOException e)
+				{
+					rightLength = false;
+				}
+				if(!rightLength)
+				{
+					System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Seed file is not the right length.");
+					System.exit(1);
+				}
+				this.completedPieces.set(0, this.totalPieceCount, true);
+				this.unverifiedPieces.set(0, this.totalPieceCount, true);
+				this.inProgress.set(0, this.totalPieceCount, false);
+				
+				if(BitTortoise.verbose)
+					System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Seed file opened (it will be checked as it is used).");
+			}
+			else if(this.initialSeeding)
+			{
+				if(!Resumer.checkSeed(destinationFile, this.torrentFile))
+				{
+					System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Seed file failed SHA1 hash check.");
+					System.exit(1);
+				}
+				else
+				{
+					this.completedPieces.set(0, this.totalPieceCount, true);
+					this.inProgress.set(0, this.totalPieceCount, false);
+					
+					if(BitTortoise.verbose)
+						System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Seed file parsed.");
+				}
+			}
+		}
+		
+		//fills up the picker with all outstanding pieces
+		for(int i = 0; i < this.totalPieceCount; i++)
+		{
+			if(this.outstandingPieces[i] != null)
+			{
+				picker.add(this.outstandingPieces[i]);
+				this.outstandingCount ++;
+			}
+			else
+			{
+				// The pieces we already have must not count as blocks left to hand out:
+				this.blocks.finishPiece(i);
+			}
+		}
+	}
+	
+	/**
+	 * Announce to the tracker that we have started, and get our first list of peers.
+	 */
+	public void announceStarted()
+	{
+		byte[] my_peer_id = this.session.my_peer_id;
+		String my_key = this.session.my_key;
+		int port = this.session.port;
+		
+		// Extract a list of peers, and other information from the tracker:
+		peerList = new LinkedList<Peer>(); // List of peer objects
+		try
+		{
+			tracker = new Tracker(this.torrentFile);
+			tracker.key = my_key;
+			
+			// Using the parsed torrent file, ping the tracker and get a list of peers to connect to:
+			String connectionString = this.torrentFile.tracker_url + "?" + 
+						"info_hash=" + this.torrentFile.info_hash_as_url + "&" + 
+						"peer_id=" + TorrentFileHandler.byteArrayToURLString(my_peer_id) + "&" + 
+						"port=" + port + "&";
+			
+			// Advertise to tracker differently if we are starting out seeding versus leeching 
+			if(this.initialSeeding)
+			{
+				connectionString += "uploaded=0" + "&" +
+						"downloaded=0" + "&" + 
+						"left=0" + "&";
+			}
+			else
+			{
+				connectionString += "uploaded=0" + "&" + 
+						"downloaded=0" + "&" + 
+						"left=" + this.torrentFile.file_length + "&";
+			}
+			
+			connectionString += "key=" + my_key + "&" + 
+						"event=started" + "&" + 
+						"numwant=" + BitTortoise.numToGet + "&" + 
+						"compact=1" + "&" + 
+						"no_peer_id=1";
+			
+			HttpURLConnection connection = (HttpURLConnection)(new URL(connectionString).openConnection());
+			tracker.connect(connection, my_peer_id);
+			peerList = tracker.peerList;
+			this.lastTrackerCommunication = (new Date()).getTime();
+		}
+		catch (UnknownHostException e)
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Tracker is an unknown host: " + e.getMessage());
+		}
+		catch (IOException e) 
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error connecting to or reading from Tracker: " + e.getMessage());
+		}
+
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Finished parsing tracker results.");
+	}
+	
+	/**
+	 * Ask the tracker for more peers if we have run out of them, and the tracker's interval allows it.
+	 */
+	public void reannounce() throws IOException
+	{
+		if(this.tracker == null)
+			return;
+		
+		byte[] my_peer_id = this.session.my_peer_id;
+		
+		boolean needPeers;
+		synchronized(this)
+		{
+			needPeers = isIncomplete && numConnections < 30 && peerList.size() == 0 && (((new Date()).getTime() - tracker.interval * 1000 > this.lastTrackerCommunication) || (activePeerMap.size() == 0 && pendingPeerMap.size() == 0 && ((new Date()).getTime() - tracker.min_interval * 1000 > this.lastTrackerCommunication)));
+		}
+		
+		if(needPeers)
+		{
+			String connectionString = this.torrentFile.tracker_url + "?" + 
+					"info_hash=" + this.torrentFile.info_hash_as_url + "&" + 
+					"peer_id=" + TorrentFileHandler.byteArrayToURLString(my_peer_id) + "&" + 
+					"port=" + this.session.port + "&" + 
+					"uploaded=" + this.totalUploaded + "&" + 
+					"downloaded=" + this.totalDownloaded + "&" + 
+					"left=" + (this.torrentFile.file_length - this.totalDownloaded) + "&" + 
+					"key=" + this.session.my_key + "&" + 
+					"numwant=" + (BitTortoise.numToGet - peerList.size()) + "&" + 
+					"compact=1" + "&" + 
+					((tracker.tracker_id == null)? ("") : ("trackerid=" + tracker.tracker_id + "&")) + 
+					"no_peer_id=1";
+			
+			HttpURLConnection tempConnection = (HttpURLConnection)(new URL(connectionString).openConnection());
+			
+			tracker.connect(tempConnection,my_peer_id);
+			
+			// Only add new peers to the list
+			for(int i=0;i<tracker.peerList.size();i++)
+			{
+				if(!peerList.contains(tracker.peerList.get(i)))
+				{
+					peerList.add(tracker.peerList.get(i));
+				}
+			}
+			this.lastTrackerCommunication = (new Date()).getTime();
+		}
+	}
+	
+	/**
+	 * Open outgoing connections to peers from the tracker's list until we have enough of them.  Each new connection
+	 * is handed to one of the session's selector threads.
+	 */
+	public synchronized void connectToPeers()
+	{
+		while(isIncomplete && numConnections < 30 && peerList.size() > 0)
+		{
+			boolean succeeded = false;
+			while(!succeeded)
+			{
+				int last = peerList.size() - 1;
+				if(last >= 0)
+				{
+					Peer toConnect = peerList.get(last);
+					
+					if(!connectedIDs.contains(new String(toConnect.peer_id)) && !activePeerMap.containsValue(toConnect) && !pendingPeerMap.containsValue(toConnect))
+					{
+						// Send handshake to peer:
+						try
+						{
+							// Open a new connection to the peer, set to not block:
+							SocketChannel sc = SocketChannel.open();
+							sc.configureBlocking(false);
+							
+							sc.connect(new InetSocketAddress(toConnect.ip, toConnect.port));
+							
+							connectedIDs.add(new String(toConnect.peer_id));
+							
+							// Add the new peer to the Map:
+							toConnect.setTorrent(this);
+							pendingPeerMap.put(sc, toConnect);
+							
+							succeeded = true;
+							
+							numConnections++;
+							this.session.numConnections.incrementAndGet();
+							
+							// Have a selector thread register the new connection:
+							this.session.nextSelectorThread().register(sc, SelectionKey.OP_CONNECT, toConnect);
+							
+							if(BitTortoise.verbose)
+								System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + toConnect.ip + ":" + toConnect.port + "): New outgoing connection started.");
+						}
+						catch(IOException e)
+						{
+							System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Could not open new connection to peer - " + e.getMessage());
+							
+							if(pendingPeerMap.containsValue(toConnect))
+							{
+								BitTortoise.removePeer(toConnect, pendingPeerMap);
+							}
+							
+							connectedIDs.remove(new String(toConnect.peer_id));
+						}
+						peerList.remove(last);
+					}
+					else
+					{
+						// Remove from the list.
+						peerList.remove(last);
+					}
+				}
+				else
+				{
+					succeeded = true;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Called by the Session once an incoming connection has sent us a handshake for this torrent.
+	 * 
+	 * @param sc the new connection
+	 * @param key the connection's key in the selector (the new Peer is attached to it)
+	 * @param external_peer_id the peer id from the handshake
+	 * @param buf the buffer that the handshake was read into (the new Peer keeps it)
+	 * @param start where the bytes after the handshake start in buf
+	 * @return the new Peer, or null if we are already connected to this peer
+	 */
+	public synchronized Peer addIncomingPeer(SocketChannel sc, SelectionKey key, byte[] external_peer_id, ByteBuffer buf, int start)
+	{
+		Peer connectedTo = new Peer(this.torrentFile.info_hash_as_binary, external_peer_id, this.session.my_peer_id, sc.socket().getInetAddress().getHostAddress(), sc.socket().getPort());
+		
+		if(activePeerMap.containsValue(connectedTo))
+		{
+			// We already have a connection to this peer
+			return null;
+		}
+		
+		connectedTo.setTorrent(this);
+		activePeerMap.put(sc, connectedTo);
+		connectedIDs.add(new String(connectedTo.peer_id));
+		key.attach(connectedTo);
+		connectedTo.key = key;
+		this.numConnections ++;
+		
+		connectedTo.handshake_received = true;
+		
+		connectedTo.readBuffer = buf;
+		connectedTo.readCursor = start;
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + connectedTo.ip + ":" + connectedTo.port + "): Received Handshake message.");
+		
+		return connectedTo;
+	}
+	
+	/**
+	 * Forget about a peer whose connection is being closed, releasing any blocks it was going to send us.
+	 * @param sc the peer's connection
+	 * @param p the peer
+	 */
+	public synchronized void removePeer(SocketChannel sc, Peer p)
+	{
+		if(activePeerMap.remove(sc) == null)
+			pendingPeerMap.remove(sc);
+		p.cleanup();
+		
+		// The pieces that this peer had are now that much rarer:
+		for(int i = p.completedPieces.nextSetBit(0); i >= 0; i = p.completedPieces.nextSetBit(i + 1))
+		{
+			Piece piece = this.outstandingPieces[i];
+			if(piece != null)
+				this.picker.decrement(piece);
+		}
+		
+		// Give the peer's buffers back to the pool:
+		this.session.readBuffers.giveBack(p.readBuffer);
+		p.readBuffer = null;
+		p.releaseSendBuffer();
+		connectedIDs.remove(new String(p.peer_id));
+		this.numConnections --;
+	}
+	
+	/**
+	 * Report on how the transfer went, let the tracker know that we are leaving, and save a resume file if the user
+	 * quit before we finished.
+	 */
+	public void finish()
+	{
+		byte[] my_peer_id = this.session.my_peer_id;
+		int port = this.session.port;
+		
+		long timeTaken = (new Date()).getTime() - this.startTime;
+		
+		// (the torrent's connections are closed by the selector threads that own them - see Session.closeTorrentConnections)
+		
+		if(!this.isIncomplete)
+		{
+			tracker.alertCompleted(this.totalDownloaded, this.totalUploaded, my_peer_id, port);
+			tracker.alertStopped(this.totalDownloaded, this.totalUploaded, my_peer_id, port);
+			
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": " + this.destinationFileName + ": Success!");
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": File received in " + timeTaken / 1000 + " seconds. Average download rate: " + ((((double)this.torrentFile.file_length) / ((double)timeTaken)) * (((double)1000.0) / ((double)1024.0))) + " kB/s.");
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Average upload rate: " + ((((double)this.totalUploaded) / ((double)timeTaken)) * (((double)1000.0) / ((double)1024.0))) + " kB/s.");
+			
+			// There is nothing left to resume:
+			(new File(this.destinationFileName + ".btri")).delete();
+			if(this.resumeInfoFilename != null)
+				(new File(this.resumeInfoFilename)).delete();
+		}
+		else if(!this.session.quitNotReceived)
+		{
+			tracker.alertStopped(this.totalDownloaded, this.totalUploaded, my_peer_id, port);
+			
+			// Blocks that are only in memory so far have to be in the file before the resume file can say we have them:
+			byte[] status;
+			synchronized(this)
+			{
+				this.flushPieceBuffers();
+				status = Resumer.encodeStatus(this.torrentFile, this.outstandingPieces, this.blocks);
+			}
+			boolean forced;
+			try
+			{
+				this.destinationFile.force();
+				forced = true;
+			}
+			catch(IOException e)
+			{
+				forced = false;
+			}
+			
+			// Attempt to save the current status to resume from:
+			if(forced && Resumer.writeStatus(this.destinationFileName + ".btri", status, (new File(this.destinationFileName)).lastModified()))
+			{
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Resume file saved as " + this.destinationFileName + ".btri" + " .");
+			}
+			else
+			{
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Could not make resume file!");
+			}
+			
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": " + this.destinationFileName + ": User quit before file completion.");
+		}
+		else
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": What happen?  Somebody set up us the bomb.");
+		}
+		
+		try
+		{
+			this.destinationFile.close();
+		}
+		catch(IOException e)
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error closing " + this.destinationFileName + " - " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Read whatever a peer has sent us (unless readFirst is false, in which case it is already in the peer's
+	 * buffer), and process every complete message in it.  Pieces that this finishes, and unchecked pieces of a seed
+	 * file that the peer asks for, are handed to the session's hashing threads afterwards, without holding the lock.
+	 * @return false if the connection should be closed
+	 */
+	public boolean readAndProcess(Peer p, SocketChannel socketChannel, boolean readFirst)
+	{
+		boolean ok = this.readAndDecode(p, socketChannel, readFirst);
+		
+		for(Piece piece : p.piecesToVerify)
+			this.session.verifyPiece(this, piece, p.selectorThread);
+		p.piecesToVerify.clear();
+		for(int piece_index : p.seedPiecesToCheck)
+			this.session.checkSeedPiece(this, piece_index, p.selectorThread);
+		p.seedPiecesToCheck.clear();
+		return ok;
+	}
+	
+	/**
+	 * The reading and processing for readAndProcess (which takes the lock for the parts that need it).
+	 * @return false if the connection should be closed
+	 */
+	private boolean readAndDecode(Peer p, SocketChannel socketChannel, boolean readFirst)
+	{
+		if(readFirst)
+		{
+			// Information has not been read from the SocketChannel yet.. Do so
+			try
+			{
+				// The rest of a block may be able to go straight into the file, without passing through our buffer:
+				int l = this.readPieceDataDirect(p, socketChannel);
+				if(l > 0)
+					return true;
+				
+				if(l == 0)
+					l = socketChannel.read(p.readBuffer);
+				
+				// If the other side is (orderly) trying to shut down the connection: 
+				if(l == -1)
+				{
+					System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Connection closed (gracefully).");
+					return false;
+				}
+				
+			}
+			catch(IOException e)
+			{
+				return false;
+			}
+		}
+		
+		synchronized(this)
+		{
+			return FrameDecoder.decode(p, this);
+		}
+	}
+	
+	/**
+	 * Read the rest of the Piece message that a peer is part way through sending us straight to where it is to be
+	 * kept, if nothing else is waiting in the peer's read buffer and that place is a buffer of its own (the piece's
+	 * buffer in the write cache, or a mapped file).  This is called without holding the lock.
+	 * @return the number of bytes read, 0 if they have to go through the read buffer instead, or -1 if the other
+	 * side has closed the connection
+	 */
+	private int readPieceDataDirect(Peer p, SocketChannel socketChannel) throws IOException
+	{
+		if(p.payloadLeft == 0 || p.skippingPayload || p.readCursor != p.readBuffer.position())
+			return 0;
+		
+		BlockRequest br;
+		ByteBuffer target;
+		synchronized(this)
+		{
+			br = p.blockRequest;
+			if(br == null || br.getStatus() != BlockRequest.STARTED)
+				return 0;
+			
+			ByteBuffer buffer = this.pieceBuffer(this.outstandingPieces[br.piece]);
+			if(buffer != null)
+			{
+				target = buffer.duplicate();
+				target.position(br.offset + br.getBytesRead());
+				target.limit(Math.min(target.capacity(), target.position() + p.payloadLeft));
+			}
+			else
+			{
+				long fileOffset = (br.piece * ((long)this.torrentFile.piece_length)) + br.offset + br.getBytesRead();
+				target = this.destinationFile.directBuffer(fileOffset, p.payloadLeft);
+			}
+		}
+		if(target == null)
+			return 0;
+		
+		int start = target.position();
+		int l = socketChannel.read(target);
+		if(l <= 0)
+			return l;
+		p.payloadLeft -= l;
+		
+		// Count and hash the data where it landed:
+		target.limit(target.position());
+		target.position(start);
+		synchronized(this)
+		{
+			if(p.blockRequest == br && br.getStatus() == BlockRequest.STARTED)
+				this.pieceDataArrived(p, target, true);
+		}
+		return l;
+	}
+	
+	public boolean handleHandshake(Peer p, ByteBuffer buf, int start)
+	{
+		if(!BitTortoise.isHandshakeMessage(buf, start))
+			return false;
+		
+		// Check if the info hash that was given matches the one we are providing:
+		for(int i = 0; i < 20; i ++)
+		{
+			if(buf.get(start + 28 + i) != p.info_hash[i])
+			{
+				// Peer requested connection for a bad info hash - Throw out connection ?
+				return false;
+			}
+		}
+		
+		p.handshake_received = true;
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Handshake message.");
+		return true;
+	}
+	
+	public boolean handleKeepAlive(Peer p)
+	{
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Keep-alive message.");
+		return true;
+	}
+	
+	public boolean handleChoke(Peer p)
+	{
+		p.peer_choking = true;
+		
+		// Release all former requests:
+		p.cleanup();
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Choke message.");
+		return true;
+	}
+	
+	public boolean handleUnchoke(Peer p)
+	{
+		p.peer_choking = false;
+		
+		p.emptyFinishedRequests();
+		p.fill(this.completedPieces,this.inProgress, this.picker);
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Unchoke message.");
+		return true;
+	}
+	
+	public boolean handleInterested(Peer p)
+	{
+		p.peer_interested = true;
+		
+		if(numUnchoked < BitTortoise.NUM_TO_UNCHOKE)
+			this.unchokePeers();
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Interested message.");
+		return true;
+	}
+	
+	public boolean handleNotInterested(Peer p)
+	{
+		p.peer_interested = false;
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Not Interested message.");
+		return true;
+	}
+	
+	public boolean handleHave(Peer p, int piece_index)
+	{
+		if(piece_index < 0 || piece_index >= this.totalPieceCount)
+			return false;
+		
+		// Updated so that rarity is properly preserved for bad have messages
+		if(!p.completedPieces.get(piece_index))
+		{
+			p.completedPieces.set(piece_index, true);
+			
+			if(outstandingPieces[piece_index] != null)
+			{
+				this.picker.increment(outstandingPieces[piece_index]);
+			}
+		}
+		
+		// Set us to interested if they have something we want (and we are not already interested):
+		if(!p.am_interested && !this.completedPieces.get(piece_index))
+			p.shouldInterest = true;
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Have (" + piece_index + ") message.");
+		return true;
+	}
+	
+	public boolean handleBitfield(Peer p, ByteBuffer buf, int start, int length)
+	{
+		// Read the bits straight out of the buffer.  If a client (incorrectly) sends us a second bitfield, only the
+		// pieces that are new to it count towards their rarity.
+		for(int i = 0; i < length; i ++)
+		{
+			byte b = buf.get(start + i);
+			if(b == 0)
+				continue;
+			
+			for(int bit = 0; bit < 8; bit ++)
+			{
+				int piece_index = i * 8 + bit;
+				if((b & (0x80 >> bit)) != 0 && piece_index < this.totalPieceCount && !p.completedPieces.get(piece_index))
+				{
+					p.completedPieces.set(piece_index);
+					
+					if(outstandingPieces[piece_index] != null)
+					{
+						this.picker.increment(outstandingPieces[piece_index]);
+					}
+					
+					// Set us to interested if they have something we want (and we are not already interested):
+					if(!p.am_interested && !this.completedPieces.get(piece_index))
+						p.shouldInterest = true;
+				}
+			}
+		}
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Bitfield message.");
+		return true;
+	}
+	
+	public boolean handleRequest(Peer p, int request_index, int request_begin, int request_length)
+	{
+		if(request_index < 0 || request_index >= this.totalPieceCount)
+			return false;
+		
+		// A piece that we told the peer about, but which then failed its check (lazy seeding), is just ignored:
+		if(!this.completedPieces.get(request_index))
+			return p.advertisedPieces.get(request_index);
+		
+		if(request_begin < 0 || request_begin > this.torrentFile.piece_length || request_length <= 0 || request_begin + request_length > this.torrentFile.piece_length)
+			return false;
+		
+		if(request_index == this.totalPieceCount - 1)
+		{
+			if(((long)this.torrentFile.piece_length) * request_index + request_begin + request_length > this.torrentFile.file_length)
+				return false;
+		}
+		
+		// A piece of a seed file that hasn't been checked yet has to be checked before any of it is sent, which is
+		// done on a hashing thread while the request waits:
+		if(this.unverifiedPieces.get(request_index))
+		{
+			if(!p.am_choking)
+				p.parkedRequests.add(new BlockRequest(request_index,request_begin,request_length));
+			if(!this.checkingPieces.get(request_index))
+			{
+				this.checkingPieces.set(request_index);
+				p.seedPiecesToCheck.add(request_index);
+			}
+		}
+		
+		// Queue this for sending at some point in the near future:
+		else if(!p.am_choking)
+		{
+			p.receiveRequests.add(new BlockRequest(request_index,request_begin,request_length));
+		}
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Request (" + request_index + "," + request_begin + "," + request_length + ") message.");
+		return true;
+	}
+	
+	public boolean handlePieceStart(Peer p, int piece_index, int block_begin, int block_length)
+	{
+		// Find the request that this is the answer to:
+		int block = this.blocks.blockAt(piece_index, block_begin);
+		p.blockRequest = (block == -1)? (null) : (p.requestIndex.get(block));
+		if(p.blockRequest == null || p.blockRequest.length != block_length)
+		{
+			p.blockRequest = null;
+			return false;
+		}
+		
+		// In endgame mode the block may have been asked of other peers as well, and only the first copy to arrive is
+		// kept - any other copy is skipped:
+		int status = p.blockRequest.getStatus();
+		if(status == BlockRequest.FINISHED || (status == BlockRequest.STARTED && this.blocks.getOwner(block) != p.index))
+		{
+			if(BitTortoise.verbose)
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Piece (" + piece_index + "," + block_begin + "," + block_length + ") message that another peer has already sent (skipping).");
+			p.removeRequest(p.blockRequest);
+			p.blockRequest = null;
+			return true;
+		}
+		
+		p.blockRequest.setStatus(BlockRequest.STARTED);
+		this.blocks.setOwner(block, p.index);
+		p.measureRoundTrip(p.blockRequest);
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Piece (" + piece_index + "," + block_begin + "," + block_length + ") message (beginning).");
+		return true;
+	}
+	
+	public boolean handlePieceData(Peer p, ByteBuffer data)
+	{
+		// The request may have been given to someone else while its data was on the way (a choke, or a timeout):
+		if(p.blockRequest == null || p.blockRequest.getStatus() != BlockRequest.STARTED)
+			return true;
+		
+		// Store the data straight out of the buffer:
+		this.pieceDataArrived(p, data, false);
+		return true;
+	}
+	
+	/**
+	 * Process part of the block that a peer is sending us, and ask for more once the whole block has arrived.
+	 * @param data the data, from its position to its limit
+	 * @param stored whether the data is already where it is to be kept (it was read straight into it)
+	 */
+	private void pieceDataArrived(Peer p, ByteBuffer data, boolean stored)
+	{
+		BlockRequest br = p.blockRequest;
+		processPieceMessage(p, br.piece, br.offset, data, stored);
+		
+		// If we have finished receiving this Piece message:
+		if(p.blockRequest == null)
+		{
+			p.emptyFinishedRequests();
+			p.fill(this.completedPieces, this.inProgress, this.picker);
+			
+			if(BitTortoise.verbose)
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Piece (" + br.piece + "," + br.offset + "," + br.length + ") message (end).");
+		}
+	}
+	
+	public boolean handleCancel(Peer p, int cancel_index, int cancel_begin, int cancel_length)
+	{
+		// Remove the piece request with those properties
+		Iterator<BlockRequest> it = p.receiveRequests.iterator();
+		while(it.hasNext())
+		{
+			BlockRequest br = it.next();
+			if(br.piece == cancel_index && br.offset == cancel_begin && br.length == cancel_length)
+			{
+				it.remove();
+			}
+		}
+		
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Cancel (" + cancel_index + "," + cancel_begin + "," + cancel_length + ") message.");
+		return true;
+	}
+	
+	public boolean handleUnknown(Peer p, int id, int length)
+	{
+		if(BitTortoise.verbose)
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": (" + p.ip + ":" + p.port + "): Received Unknown message - Ignored.");
+		return true;
+	}
+	
+	/**
+	 * Get a block that a peer has requested as a buffer, so that it can be sent along with other Piece messages in
+	 * one gathering write (called without holding the lock).  If the file is mapped into memory, this is a buffer over
+	 * the file itself; otherwise the whole piece is read into the session's piece cache (unless it is there already),
+	 * and the block is part of that.
+	 * @param br the requested block
+	 * @return a buffer holding the whole block, or null if it has to be sent from the file some other way (the block
+	 * straddles two mappings, or the piece cache is turned off)
+	 */
+	public ByteBuffer blockBuffer(BlockRequest br) throws IOException
+	{
+		long pieceOffset = br.piece * ((long)this.torrentFile.piece_length);
+		ByteBuffer data = this.destinationFile.directBuffer(pieceOffset + br.offset, br.length);
+		if(data != null)
+			return (data.remaining() < br.length)? (null) : (data);
+		
+		PieceCache cache = this.session.pieceCache;
+		ByteBuffer piece = cache.get(this, br.piece);
+		if(piece == null)
+		{
+			int length = this.pieceLength(br.piece);
+			if(!cache.canHold(length))
+				return null;
+			
+			// One read for the whole piece, rather than one for each block that is asked for:
+			piece = ByteBuffer.allocate(length);
+			try
+			{
+				this.destinationFile.read(piece, pieceOffset);
+			}
+			catch(EOFException e)
+			{
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error occurred while getting Piece " + br.piece + ".");
+				throw e;
+			}
+			piece.flip();
+			cache.put(this, br.piece, piece);
+		}
+		
+		ByteBuffer block = piece.duplicate();
+		block.position(br.offset);
+		block.limit(br.offset + br.length);
+		return block;
+	}
+	
+	/**
+	 * Send part of a block that a peer has requested straight from the file to its socket (called without holding
+	 * the lock).
+	 * @param br the requested block
+	 * @param alreadySent how much of the block has been sent already
+	 * @param target the peer's socket
+	 * @return the number of bytes that were sent
+	 */
+	public long transferBlock(BlockRequest br, int alreadySent, WritableByteChannel target) throws IOException
+	{
+		long fileOffset = (br.piece * ((long)this.torrentFile.piece_length)) + br.offset + alreadySent;
+		try
+		{
+			return this.destinationFile.transferTo(fileOffset, br.length - alreadySent, target);
+		}
+		catch(EOFException e)
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error occurred while getting Piece " + br.piece + ".");
+			throw e;
+		}
+	}
+	
+	public boolean storePiece(Peer p, int piece_index, int piece_begin, ByteBuffer block)
+	{
+		// If the piece is being put together in memory, it is only written to the file once it has been verified:
+		ByteBuffer buffer = this.pieceBuffer(outstandingPieces[piece_index]);
+		if(buffer != null)
+		{
+			ByteBuffer target = buffer.duplicate();
+			target.position(piece_begin + p.blockRequest.getBytesRead());
+			target.put(block);
+			return true;
+		}
+		
+		long fileOffset = (piece_index * ((long)torrentFile.piece_length)) + piece_begin + p.blockRequest.getBytesRead();
+		try
+		{
+			destinationFile.write(block, fileOffset);
+		}
+		catch(IOException e)
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error occurred while storing Piece " + piece_index + ".");
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Get the buffer that a piece is being put together in, giving it one from the session's write cache if this is
+	 * the first of its data to arrive and there is room.  A piece that already has some of its data in the file (or
+	 * that found the cache full) keeps going straight to the file until it is thrown away.
+	 * @param piece the piece
+	 * @return the piece's buffer, or null if its data should be written to the file as it arrives
+	 */
+	private ByteBuffer pieceBuffer(Piece piece)
+	{
+		if(piece.buffer != null || piece.writtenThrough)
+			return piece.buffer;
+		
+		int first = piece.firstBlock();
+		for(int i = 0; i < piece.blockCount(); i ++)
+		{
+			if(this.blocks.getStatus(first + i) == BlockRequest.FINISHED || this.blocks.getBytesRead(first + i) > 0)
+			{
+				piece.writtenThrough = true;
+				return null;
+			}
+		}
+		
+		int length = this.pieceLength(piece.pieceNum);
+		if(!this.session.writeCache.reserve(length))
+		{
+			piece.writtenThrough = true;
+			return null;
+		}
+		piece.buffer = ByteBuffer.allocate(length);
+		return piece.buffer;
+	}
+	
+	/**
+	 * Give a piece's buffer back to the write cache.
+	 * @param piece the piece
+	 * @param written whether the piece's data has been written to the file
+	 */
+	private void releasePieceBuffer(Piece piece, boolean written)
+	{
+		if(piece.buffer == null)
+			return;
+		this.session.writeCache.release(piece.buffer.capacity(), written);
+		piece.buffer = null;
+	}
+	
+	/**
+	 * Write out every finished block of the pieces that are still being put together in memory, so that what the
+	 * resume file says we have is really in the file, and give their buffers back (from here on, they are written to
+	 * the file as they arrive).  A piece that is on a hashing thread just has its hash finished from the file instead.
+	 */
+	private void flushPieceBuffers()
+	{
+		for(Piece piece : this.outstandingPieces)
+		{
+			if(piece == null || piece.buffer == null)
+				continue;
+			
+			long pieceStart = piece.pieceNum * ((long)this.torrentFile.piece_length);
+			int first = piece.firstBlock();
+			for(int i = 0; i < piece.blockCount(); i ++)
+			{
+				if(this.blocks.getStatus(first + i) != BlockRequest.FINISHED)
+					continue;
+				
+				ByteBuffer data = piece.buffer.duplicate();
+				data.position(this.blocks.offsetOf(first + i));
+				data.limit(data.position() + this.blocks.lengthOf(first + i));
+				try
+				{
+					this.destinationFile.write(data, pieceStart + data.position());
+				}
+				catch(IOException e)
+				{
+					// The block will have to be downloaded again:
+					this.blocks.release(first + i);
+					piece.blockReleased(this.blocks.offsetOf(first + i));
+					this.picker.blockReleased(piece);
+				}
+			}
+			this.releasePieceBuffer(piece, true);
+			piece.writtenThrough = true;
+		}
+	}
+	
+	/**
+	 * Save the resume file, so that we can pick up from about here if we go down before finishing.  This is called
+	 * every so often from a hashing thread, since forcing the file out to the disk can take a while.
+	 */
+	public void checkpoint()
+	{
+		byte[] status;
+		synchronized(this)
+		{
+			if(this.checkpointing || !this.isIncomplete)
+				return;
+			this.checkpointing = true;
+			status = Resumer.encodeStatus(this.torrentFile, this.outstandingPieces, this.blocks);
+		}
+		
+		// Only once everything that the resume file counts is on the disk can the resume file be put in place:
+		try
+		{
+			this.destinationFile.force();
+			if(!Resumer.writeStatus(this.destinationFileName + ".btri", status, (new File(this.destinationFileName)).lastModified()))
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Could not save resume file " + this.destinationFileName + ".btri" + " .");
+		}
+		catch(IOException e)
+		{
+			// (the file has been closed under us, or the disk has gone - either way, the last resume file stands)
+		}
+		
+		synchronized(this)
+		{
+			this.checkpointing = false;
+		}
+	}
+	
+	/**
+	 * Store (and hash) part of a block that a peer has sent us.
+	 * @param block the data, from its position to its limit (both of which are moved)
+	 * @param stored whether the data has already been written to the file (or the piece's buffer)
+	 */
+	public boolean processPieceMessage(Peer p, int piece_index, int block_begin, ByteBuffer block, boolean stored)
+	{
+		int start = block.position();
+		int length = block.remaining();
+		
+		// Update the number of bytes read this round for this peer:
+		p.bytesReadThisRound += length;
+		this.totalDownloaded += length;
+		
+		// Update the last time modified:
+		long now = (new Date()).getTime();
+		p.blockRequest.setTimeModified(now);
+		p.measureThroughput(length, now);
+		
+		// Do other stuff (by KENNY!):
+		if(!stored && !storePiece(p, piece_index, block_begin, block))
+		{
+			return false;
+		}
+		// Take the block's checksum for the resume file as its data arrives (starting over if it is being sent again
+		// after being given back), and hash the data now while we have it, if it follows on from what has been
+		// hashed already:
+		if(p.blockRequest.getBytesRead() == 0)
+			p.blockRequest.checksum = new CRC32();
+		block.position(start);
+		p.blockRequest.checksum.update(block);
+		block.position(start);
+		outstandingPieces[piece_index].updateHash(block_begin + p.blockRequest.getBytesRead(), block);
+		p.blockRequest.setBytesRead(p.blockRequest.getBytesRead() + length);
+		if(p.blockRequest.getBytesRead() >= p.blockRequest.length) //if done reading block
+		{
+			p.blockRequest.setStatus(BlockRequest.FINISHED);
+			p.lastBlockTime = System.nanoTime();
+			this.blocks.setChecksum(p.blockRequest.block, (int)p.blockRequest.checksum.getValue());
+			p.blockRequest.checksum = null;
+			if(this.inEndgame())
+				this.cancelDuplicates(p, p.blockRequest.block);
+			p.blockRequest = null; //this peer is open to receive a new block
+			if(outstandingPieces[piece_index].allFinished())
+			{
+				// Check the hash on a hashing thread, rather than holding up every other peer on this one (it is
+				// handed over once we have let go of the lock - see readAndProcess):
+				p.piecesToVerify.add(outstandingPieces[piece_index]);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return whether every block that is left has been asked for already (from then on, blocks are asked of more
+	 * than one peer at a time, so that the last few are not held up by one slow peer)
+	 */
+	public boolean inEndgame()
+	{
+		return this.outstandingCount > 0 && this.blocks.unassignedCount() == 0;
+	}
+	
+	/**
+	 * Once a block has arrived in endgame mode, cancel any other requests for it.
+	 * @param from the peer that sent the block
+	 * @param block the block's number in the BlockTable
+	 */
+	private void cancelDuplicates(Peer from, int block)
+	{
+		for(Peer other : this.activePeerMap.values())
+		{
+			if(other == from)
+				continue;
+			
+			BlockRequest br = other.requestIndex.get(block);
+			if(br == null || br.cancelling)
+				continue;
+			
+			if(br.requested)
+			{
+				// The peer has been asked for it, so tell it not to bother:
+				other.shouldCancel.add(br);
+				br.cancelling = true;
+				other.changed();
+			}
+			else
+				other.removeRequest(br);
+		}
+	}
+	
+	/**
+	 * Finish hashing a piece whose blocks have all been stored, and compare it with the hash in the .torrent file.
+	 * A piece that was put together in memory is written to the file here, in one go, if (and only if) it matches.
+	 * This is run on a hashing thread.
+	 * @param piece the piece
+	 * @return whether the hashes match (and the piece is in the file)
+	 */
+	public boolean checkPieceHash(Piece piece)
+	{
+		long pieceStart = piece.pieceNum * ((long)this.torrentFile.piece_length);
+		int length = this.pieceLength(piece.pieceNum);
+		try
+		{
+			byte[] sha = piece.finishHash(this.destinationFile, pieceStart, length);
+			if(!Arrays.equals(sha, (byte[])this.torrentFile.piece_hash_values_as_binary.get(piece.pieceNum)))
+				return false;
+		}
+		catch(IOException e)
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error occurred while reading Piece " + piece.pieceNum + " to check its hash.");
+			return false;
+		}
+		
+		if(piece.buffer != null)
+		{
+			ByteBuffer data = piece.buffer.duplicate();
+			data.limit(length);
+			data.position(0);
+			try
+			{
+				this.destinationFile.write(data, pieceStart);
+			}
+			catch(IOException e)
+			{
+				System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error occurred while storing Piece " + piece.pieceNum + ".");
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param index a piece index
+	 * @return the length of that piece (the last piece may be shorter than the rest)
+	 */
+	public int pieceLength(int index)
+	{
+		if(index == this.totalPieceCount - 1)
+			return (int)(this.torrentFile.file_length - index * ((long)this.torrentFile.piece_length));
+		return this.torrentFile.piece_length;
+	}
+	
+	/**
+	 * Called on a selector thread once the hash of a finished piece has been checked.
+	 * @param piece_index the piece that was checked
+	 * @param matches whether its SHA-1 hash matched the one in the .torrent file
+	 */
+	public synchronized void pieceVerified(int piece_index, boolean matches)
+	{
+		if(this.outstandingPieces[piece_index] == null)
+			return;
+		
+		if(matches)
+		{
+			Piece temp = this.outstandingPieces[piece_index];
+			this.releasePieceBuffer(temp, true);
+			this.outstandingPieces[piece_index] = null;
+			this.outstandingCount --;
+			this.picker.remove(temp);
+			this.completedPieces.set(piece_index);
+			// (a seed that had to download pieces that failed their check goes on seeding, as it would have anyway)
+			if (this.outstandingCount == 0 && !this.initialSeeding)
+			{
+				isIncomplete = false;
+			}
+			// The piece has been finished:
+			this.inProgress.set(piece_index, false);
+			this.completedPieces.set(piece_index, true);
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Completed piece " + piece_index);
+			
+			// Every peer needs to be sent a Have for the new piece (and the session thread may need to finish the
+			// torrent):
+			this.peersChanged();
+			this.session.wakeup();
+		}
+		else
+		{
+			System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error in SHA1 hash for piece " + piece_index + "!");
+			this.releasePieceBuffer(this.outstandingPieces[piece_index], false);
+			this.outstandingPieces[piece_index].resetAll();
+			this.picker.blockReleased(this.outstandingPieces[piece_index]);
+		}
+	}
+	
+	/**
+	 * Called on a selector thread once a piece of the seed file that a peer asked for has been checked (lazy
+	 * seeding).  Every peer with requests waiting for a check has them looked at again, on its own selector thread.
+	 * @param piece_index the piece that was checked
+	 * @param matches whether its SHA-1 hash matched the one in the .torrent file
+	 */
+	public synchronized void seedPieceVerified(int piece_index, boolean matches)
+	{
+		this.checkingPieces.clear(piece_index);
+		if(this.unverifiedPieces.get(piece_index))
+			this.seedPieceChecked(piece_index, matches);
+		
+		for(final Peer p : this.activePeerMap.values())
+		{
+			if(p.parkedRequests.isEmpty())
+				continue;
+			p.selectorThread.execute(new Runnable()
+			{
+				public void run()
+				{
+					unparkRequests(p);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Send a peer the requests of its that were waiting for pieces of the seed file to be checked, now that they have
+	 * been.  Any request for a piece that failed its check can't be sent after all, and the peer is choked: that
+	 * makes it drop every request it has made of us (there is no way to turn down just the one), and it will ask
+	 * again, for pieces that we do have, once the next round of unchoking lets it.
+	 * @param p the peer (whose selector thread this must be called on)
+	 */
+	private synchronized void unparkRequests(Peer p)
+	{
+		boolean rejected = false;
+		Iterator<BlockRequest> it = p.parkedRequests.iterator();
+		while(it.hasNext())
+		{
+			BlockRequest br = it.next();
+			if(this.checkingPieces.get(br.piece))
+				continue;
+			it.remove();
+			if(!this.completedPieces.get(br.piece))
+				rejected = true;
+			else if(!p.am_choking)
+				p.receiveRequests.add(br);
+		}
+		
+		if(rejected && !p.am_choking)
+		{
+			p.shouldChoke = true;
+			p.receiveRequests.clear();
+			p.parkedRequests.clear();
+		}
+		p.changed();
+	}
+	
+	/**
+	 * Record the result of checking a piece of the seed file.  A piece that does not match is taken out of the pieces
+	 * that we have (new peers will not be told about it, and requests for it are ignored), and downloaded again.
+	 * @param piece_index the piece
+	 * @param matches whether its hash matched the one in the .torrent file
+	 */
+	private void seedPieceChecked(int piece_index, boolean matches)
+	{
+		this.unverifiedPieces.clear(piece_index);
+		if(matches)
+			return;
+		
+		System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": Error in SHA1 hash for piece " + piece_index + " of the seed file - it will be downloaded again.");
+		this.completedPieces.clear(piece_index);
+		
+		Piece piece = new Piece(piece_index, this.blocks);
+		int first = piece.firstBlock();
+		for(int i = 0; i < piece.blockCount(); i ++)
+			this.blocks.release(first + i);
+		for(Peer p : this.activePeerMap.values())
+		{
+			if(p.completedPieces.get(piece_index))
+			{
+				piece.commonality ++;
+				if(!p.am_interested)
+				{
+					p.shouldInterest = true;
+					p.changed();
+				}
+			}
+		}
+		this.outstandingPieces[piece_index] = piece;
+		this.outstandingCount ++;
+		this.picker.add(piece);
+	}
+	
+	/**
+	 * Check every piece of the seed file that has not been checked yet, one at a time, on a thread of its own (lazy
+	 * seeding).  Pieces that peers ask for first are checked as they are asked for, and skipped here.
+	 */
+	public void startSeedCheck()
+	{
+		Thread checker = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				for(int i = 0; i < totalPieceCount && session.quitNotReceived; i ++)
+				{
+					synchronized(TorrentContext.this)
+					{
+						if(!unverifiedPieces.get(i) || checkingPieces.get(i))
+							continue;
+					}
+					
+					// Hash the piece without holding the lock, and then see whether it was checked in the meantime:
+					boolean matches = PieceChecker.checkPiece(destinationFile, torrentFile, i);
+					synchronized(TorrentContext.this)
+					{
+						if(unverifiedPieces.get(i) && session.quitNotReceived)
+							seedPieceChecked(i, matches);
+					}
+				}
+				if(BitTortoise.verbose && session.quitNotReceived)
+					System.out.println(((new SimpleDateFormat("[kk:mm:ss]")).format(new Date())) + ": " + destinationFileName + ": Finished checking the seed file.");
+			}
+		}, "BitTortoise seed checker");
+		checker.setDaemon(true);
+		checker.start();
+	}
+	
+	/**
+	 * Count bytes that we have uploaded (this can be called without holding the lock).
+	 * @param sent the number of bytes of file data that were just sent
+	 */
+	public synchronized void addUploaded(long sent)
+	{
+		this.totalUploaded += sent;
+	}
+	
+	public void printStatus()
+	{
+		System.out.println(this.destinationFileName + ":");
+		for(int i = 0; i < this.totalPieceCount; i += 25)
+		{
+			for(int j = 0; (j < 25) && (i + j < this.totalPieceCount); j ++)
+			{
+				System.out.print((this.completedPieces.get(i + j)? "*" : "." ));
+			}
+			System.out.println();
+		}
+		System.out.println("Received: " + this.totalDownloaded + " bytes of file data.");
+		System.out.println("Sent: " + this.totalUploaded + " bytes of file data.");
+	}
+	
+	public void unchokePeers()
+	{
+		ArrayList<Peer> possiblePeers = new ArrayList<Peer>();
+		for(Map.Entry<SocketChannel, Peer> e : activePeerMap.entrySet())
+		{
+			if(e.getValue() != null)
+			{
+				possiblePeers.add(e.getValue());
+			}
+		}
+		
+		// sorts it based on bytesReadThisRound 
+		// To avoid Array OOB errors, make sure there are at least 3, otherwise unchoke all
+		Collections.sort(possiblePeers, new topThreeComparator());
+		if(possiblePeers.size() > BitTortoise.NUM_TO_UNCHOKE)
+		{
+			// Unchoke the top 3 peers that are sending us stuff, regardless... also make sure that there are (top) 3 interested peers unchoked
+			int interested = 0;
+			for(int i = 0; i < BitTortoise.NUM_TO_UNCHOKE; i ++)
+			{
+				if(possiblePeers.get(i).peer_interested)
+					interested ++;
+				possiblePeers.get(i).shouldUnchoke = true;
+			}
+			
+			numUnchoked = BitTortoise.NUM_TO_UNCHOKE;
+			
+			int index = BitTortoise.NUM_TO_UNCHOKE;
+			while(interested < BitTortoise.NUM_TO_UNCHOKE && index < possiblePeers.size())
+			{
+				if(possiblePeers.get(index).peer_interested)
+				{
+					numUnchoked ++;
+					possiblePeers.get(index).shouldUnchoke = true;
+					interested ++;
+				}
+				index ++;
+			}
+			
+			// get one to randomly unchoke
+			int optimisticUnchokeIndex = (int)(Math.random() * (possiblePeers.size() - BitTortoise.NUM_TO_UNCHOKE));
+			optimisticUnchokeIndex = optimisticUnchokeIndex + BitTortoise.NUM_TO_UNCHOKE;
+			if(optimisticUnchokeIndex > 0 && optimisticUnchokeIndex < possiblePeers.size() && !possiblePeers.get(optimisticUnchokeIndex).shouldUnchoke && possiblePeers.get(optimisticUnchokeIndex).am_choking)
+				possiblePeers.get(optimisticUnchokeIndex).shouldUnchoke = true;
+		}
+		else
+		{
+			numUnchoked = 0;
+			for(Peer p : possiblePeers)
+			{
+				numUnchoked ++;
+				p.shouldUnchoke = true;
+			}
+		}
+		// go through and set the peers as choked if they aren't already
+		for (int j = 0; j < possiblePeers.size(); j++)
+		{
+			Peer p = possiblePeers.get(j);
+			if (p.am_choking == false && p.shouldUnchoke == false)
+			{
+				p.shouldChoke = true;
+			}
+			else
+			{
+				p.shouldChoke = false;
+			}
+			
+			if(p.am_choking == false && p.shouldUnchoke == true)
+			{
+				p.shouldUnchoke = false;
+			}
+			
+			if(p.am_choking == true  && p.shouldChoke == true)
+			{
+				p.shouldChoke = false;
+			}
+			p.finalizeRound();
+		}
+		
+		// The peers' selector threads need to send the new Choke/Unchoke messages:
+		this.peersChanged();
+	}
+	
+	/**
+	 * Have every peer's selector thread work out again whether it has anything to send the peer.
+	 */
+	private void peersChanged()
+	{
+		for(Peer p : this.activePeerMap.values())
+			p.changed();
+	}
+}
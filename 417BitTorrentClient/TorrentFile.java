@@ -48,7 +48,7 @@ public class TorrentFile
 	/**
 	 * The number of bytes in the file (for a single-file .torrent).
 	 */
-	public int file_length;
+	public long file_length;
 	
 	/**
 	 * The size of each piece of the file as broken up by the tracker.
@@ -302,7 +302,8 @@ public class TorrentFileHandler
 
 	/**
 	 * Parses a bencoded Integer located at <code>data[index.index]</code> and
-	 * returns it as an Integer object. After being called,
+	 * returns it as an Integer object (or a Long object, if it is too big to
+	 * fit in an Integer). After being called,
 	 * <code>index.index</code> points to the byte after the end of the
 	 * Integer (the next data structure).
 	 * 
@@ -311,14 +312,14 @@ public class TorrentFileHandler
 	 * @param index
 	 *            A valid index into <code>data</code> that points to the
 	 *            beginning of a bencoded Integer.
-	 * @return An Integer representing the bencoded Integer at
+	 * @return An Integer (or Long) representing the bencoded Integer at
 	 *         <code>data[index.index]</code>.
 	 */
-	private Integer parseInteger(byte[] data, Index index)
+	private Number parseInteger(byte[] data, Index index)
 	{
-		Integer return_integer;
-		int temp_value = 0;
-		int power_of_ten = 1;
+		Number return_integer;
+		long temp_value = 0;
+		long power_of_ten = 1;
 		boolean first_digit = false;
 		boolean is_negative = false;
 
@@ -356,11 +357,16 @@ public class TorrentFileHandler
 
 		if(is_negative)
 		{
-			return_integer = new Integer(-temp_value);
+			temp_value = -temp_value;
+		}
+		
+		if(temp_value >= Integer.MIN_VALUE && temp_value <= Integer.MAX_VALUE)
+		{
+			return_integer = new Integer((int)temp_value);
 		}
 		else
 		{
-			return_integer = new Integer(temp_value);
+			return_integer = new Long(temp_value);
 		}
 		
 		return return_integer;
@@ -533,7 +539,7 @@ public class TorrentFileHandler
 			return false;
 		}
 		
-		torrent_file.file_length = ((Integer)info_map.get("length")).intValue();
+		torrent_file.file_length = ((Number)info_map.get("length")).longValue();
 		if(torrent_file.file_length < 0)
 		{
 			System.err.println("Error: [TorrentFileHandler.java] Could not retrieve the file length.");
@@ -0,0 +1,74 @@
+/**
+ * A budget of memory (for the whole session) in which pieces that we are downloading are put together before they
+ * are written to disk.  A piece that gets a buffer from here has its blocks copied into that buffer as they arrive,
+ * is hashed from memory, and is only written to the file once its hash has checked out - in one write, from the
+ * start of the piece to the end - so a piece that fails its hash never touches the disk, and the disk sees long
+ * sequential writes instead of a block here and a block there.
+ *
+ * A piece that starts arriving while the budget is used up is written to the file a block at a time as before
+ * (until it is finished or thrown away), so the cache never holds up a download.
+ */
+public class WriteCache
+{
+	private long capacity; // bytes
+	private long size; // bytes given out to pieces
+
+	// Statistics:
+	private long buffered; // pieces that were given a buffer
+	private long writtenThrough; // pieces that started arriving when there was no room
+	private long flushed; // pieces that were written out once their hash checked out
+	private long discarded; // pieces that were thrown away without being written, because their hash did not
+
+	/**
+	 * Constructor
+	 * @param capacity the most bytes of pieces to hold at once (0 turns the cache off)
+	 */
+	public WriteCache(long capacity)
+	{
+		this.capacity = capacity;
+		this.size = 0;
+		this.buffered = 0;
+		this.writtenThrough = 0;
+		this.flushed = 0;
+		this.discarded = 0;
+	}
+
+	/**
+	 * Take room for a piece that is about to start arriving, if there is any.
+	 * @param pieceLength the length of the piece
+	 * @return whether the piece may be buffered (if not, it has to be written to the file as it arrives)
+	 */
+	public synchronized boolean reserve(int pieceLength)
+	{
+		if(this.size + pieceLength > this.capacity)
+		{
+			this.writtenThrough ++;
+			return false;
+		}
+		this.size += pieceLength;
+		this.buffered ++;
+		return true;
+	}
+
+	/**
+	 * Give back the room taken by a piece.
+	 * @param pieceLength the length of the piece
+	 * @param written whether the piece was written out (rather than thrown away)
+	 */
+	public synchronized void release(int pieceLength, boolean written)
+	{
+		this.size -= pieceLength;
+		if(written)
+			this.flushed ++;
+		else
+			this.discarded ++;
+	}
+
+	/**
+	 * @return a one line summary of how the cache is being used
+	 */
+	public synchronized String getStatistics()
+	{
+		return "Write cache: " + this.size + " of " + this.capacity + " bytes in use, " + this.buffered + " pieces buffered, " + this.flushed + " written out, " + this.discarded + " discarded, " + this.writtenThrough + " written through.";
+	}
+}